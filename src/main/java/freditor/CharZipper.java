@@ -3,12 +3,21 @@ package freditor;
 import freditor.persistent.ByteVector;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.stream.IntStream;
 
 public class CharZipper implements CharSequence {
     private ByteVector before = ByteVector.EMPTY;
     private ByteVector after = ByteVector.EMPTY;
 
+    /**
+     * Snapshot of the text, restored in O(1).
+     *
+     * @deprecated Freditor records its undo history as edit deltas and no longer uses snapshots.
+     * Restoring one does not notify subclasses, so any bookkeeping they derive from the text goes stale.
+     */
+    @Deprecated
     protected class Memento {
         private final ByteVector before = CharZipper.this.before;
         private final ByteVector after = CharZipper.this.after;
@@ -37,40 +46,31 @@ public class CharZipper implements CharSequence {
     @Override
     public char charAt(int index) {
         if (index < before.size()) return charAt(before, index);
-        index -= before.size();
-        return charAt(after, after.size() - 1 - index);
+        return charAt(after, index - before.size());
     }
 
     @Override
     public String subSequence(int start, int end) {
-        final int len = end - start;
-        char[] temp = new char[len];
-        for (int i = 0; i < len; ++i) {
-            temp[i] = charAt(start + i);
+        byte[] temp = new byte[end - start];
+        final int lenBefore = before.size();
+        if (start < lenBefore) {
+            before.copyIntoArray(start, Math.min(end, lenBefore), temp, 0);
         }
-        return new String(temp);
+        if (end > lenBefore) {
+            after.copyIntoArray(Math.max(start - lenBefore, 0), end - lenBefore, temp, Math.max(lenBefore - start, 0));
+        }
+        return new String(temp, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public IntStream chars() {
+        return IntStream.concat(before.stream(), after.stream());
     }
 
     public byte[] toByteArray() {
-        final int lenBefore = before.size();
-        final int lenAfter = after.size();
-        final int len = lenBefore + lenAfter;
-        byte[] temp = new byte[len];
-
-        if (lenBefore < lenAfter) {
-            after.copyIntoArray(temp, lenBefore);
-            for (int i = lenBefore, k = temp.length - 1; i < k; ++i, --k) {
-                byte x = temp[i];
-                temp[i] = temp[k];
-                temp[k] = x;
-            }
-        } else {
-            after.copyIntoArray(temp, 0);
-            for (int i = lenAfter - 1, k = lenBefore; i >= 0; --i, ++k) {
-                temp[k] = temp[i];
-            }
-        }
+        byte[] temp = new byte[length()];
         before.copyIntoArray(temp, 0);
+        after.copyIntoArray(temp, before.size());
         return temp;
     }
 
@@ -87,8 +87,15 @@ public class CharZipper implements CharSequence {
     }
 
     protected void loadStrict(byte[] bytes) throws UnsupportedEncodingException {
+        ByteBuffer words = ByteBuffer.wrap(bytes);
         int n = 0;
         for (int i = 0; i < bytes.length; ++i) {
+            if (i + 8 <= bytes.length && isPrintableAscii(words.getLong(i))) {
+                words.putLong(n, words.getLong(i));
+                n += 8;
+                i += 7;
+                continue;
+            }
             byte x = bytes[i];
             if (x >= 32 && x < 127 || x == '\n' || x >= -96 && x <= -1) {
                 bytes[n++] = x;
@@ -104,8 +111,16 @@ public class CharZipper implements CharSequence {
     }
 
     protected void loadLenient(byte[] bytes) {
+        ByteBuffer words = ByteBuffer.wrap(bytes);
         int n = 0;
-        for (byte x : bytes) {
+        for (int i = 0; i < bytes.length; ++i) {
+            if (i + 8 <= bytes.length && isPrintableAscii(words.getLong(i))) {
+                words.putLong(n, words.getLong(i));
+                n += 8;
+                i += 7;
+                continue;
+            }
+            byte x = bytes[i];
             if (x >= 32 && x < 127 || x == '\n' || x >= -96 && x <= -1) {
                 bytes[n++] = x;
             } else if (x == '\t') {
@@ -116,17 +131,25 @@ public class CharZipper implements CharSequence {
         after = ByteVector.EMPTY;
     }
 
+    private static final long ONES = 0x0101010101010101L;
+    private static final long SPACES = 0x2020202020202020L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    // all 8 bytes between 32 and 126, which need no filtering
+    private static boolean isPrintableAscii(long word) {
+        long belowSpace = (word - SPACES) & ~word;
+        long delete = word + ONES;
+        return ((word | belowSpace | delete) & HIGHS) == 0;
+    }
+
     protected void focusOn(int index) {
-        int delta = index - before.size();
-        for (; delta < 0; ++delta) {
-            byte x = before.top();
-            before = before.pop();
-            after = after.push(x);
-        }
-        for (; delta > 0; --delta) {
-            byte x = after.top();
-            after = after.pop();
-            before = before.push(x);
+        final int delta = index - before.size();
+        if (delta < 0) {
+            after = before.drop(index).concat(after);
+            before = before.take(index);
+        } else if (delta > 0) {
+            before = before.concat(after.take(delta));
+            after = after.drop(delta);
         }
     }
 
@@ -141,16 +164,38 @@ public class CharZipper implements CharSequence {
     }
 
     protected void insertBeforeFocus(CharSequence s) {
-        final int len = s.length();
-        for (int i = 0; i < len; ++i) {
-            before = before.push((byte) s.charAt(i));
-        }
+        before = before.pushAll(bytesOf(s), 0, s.length());
     }
 
     protected void insertAfterFocus(CharSequence s) {
-        for (int i = s.length() - 1; i >= 0; --i) {
-            after = after.push((byte) s.charAt(i));
+        after = ByteVector.of(bytesOf(s)).concat(after);
+    }
+
+    /**
+     * Replaces the ranges [starts[k], ends[k]) for k below count with replacements[k] in one pass.
+     * The ranges must be sorted and disjoint. Long stretches of text between them are shared, not copied.
+     */
+    protected void replaceRanges(int[] starts, int[] ends, CharSequence[] replacements, int count) {
+        final ByteVector text = before.concat(after);
+        ByteVector result = ByteVector.EMPTY;
+        int done = 0;
+        for (int k = 0; k < count; ++k) {
+            result = result.pushAll(text.take(starts[k]).drop(done));
+            CharSequence replacement = replacements[k];
+            result = result.pushAll(bytesOf(replacement), 0, replacement.length());
+            done = ends[k];
+        }
+        before = result.pushAll(text.drop(done));
+        after = ByteVector.EMPTY;
+    }
+
+    static byte[] bytesOf(CharSequence s) {
+        final int len = s.length();
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; ++i) {
+            bytes[i] = (byte) s.charAt(i);
         }
+        return bytes;
     }
 
     public byte deleteLeftOf(int index) {
@@ -162,25 +207,22 @@ public class CharZipper implements CharSequence {
 
     public byte deleteRightOf(int index) {
         focusOn(index);
-        byte deleted = after.top();
-        after = after.pop();
+        byte deleted = after.byteAt(0);
+        after = after.drop(1);
         return deleted;
     }
 
     public String deleteRange(int start, int end) {
         focusOn(end);
         String result = beforeSlice(start, end);
-        before = before.take(start);
+        before = before.dropLast(end - start);
         return result;
     }
 
     private String beforeSlice(int start, int end) {
-        final int len = end - start;
-        char[] temp = new char[len];
-        for (int i = 0; i < len; ++i) {
-            temp[i] = charAt(before, start + i);
-        }
-        return new String(temp);
+        byte[] temp = new byte[end - start];
+        before.copyIntoArray(start, end, temp, 0);
+        return new String(temp, StandardCharsets.ISO_8859_1);
     }
 
     private static char charAt(ByteVector v, int index) {
@@ -0,0 +1,114 @@
+package freditor;
+
+import freditor.persistent.ByteVector;
+import freditor.persistent.ShortRunVector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stores only the state before the first character of each row, run-length encoded,
+ * since most rows start in the same state.
+ * The states within a row are relexed on demand and kept in a small LRU cache.
+ */
+final class CheckpointedFlexerStates implements FlexerStates {
+    private static final int WINDOWS = 64;
+
+    private final Freditor text;
+    private final Flexer flexer;
+
+    private ShortRunVector checkpoints = ShortRunVector.of((short) Flexer.START_ID);
+
+    private final Map<Integer, short[]> windows = new LinkedHashMap<Integer, short[]>(WINDOWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, short[]> eldest) {
+            return size() > WINDOWS;
+        }
+    };
+
+    // the most recently used window, which sequential scans hit almost always
+    private int windowStart;
+    private short[] window = {};
+
+    CheckpointedFlexerStates(Freditor text) {
+        this.text = text;
+        this.flexer = text.flexer;
+    }
+
+    @Override
+    public FlexerState stateAt(int index) {
+        if (index < 0 || index >= text.length()) return Flexer.END;
+
+        if (index < windowStart || index >= windowStart + window.length) {
+            int row = text.rowOfPosition(index);
+            windowStart = text.homePositionOfRow(row);
+            window = windows.computeIfAbsent(row, this::lexRow);
+        }
+        return flexer.stateOf(Short.toUnsignedInt(window[index - windowStart]));
+    }
+
+    private short[] lexRow(int row) {
+        final int[] transitions = flexer.transitions();
+        final int home = text.homePositionOfRow(row);
+        // the newline belongs to the row it ends
+        final int end = Math.min(text.endPositionOfRow(row) + 1, text.length());
+        short[] states = new short[end - home];
+        int id = Short.toUnsignedInt(checkpoints.get(row));
+        for (int i = home; i < end; ++i) {
+            id = transitions[id << 7 | Flexer.column(text.charAt(i))];
+            states[i - home] = (short) id;
+        }
+        return states;
+    }
+
+    private void forgetWindows() {
+        windows.clear();
+        windowStart = 0;
+        window = new short[0];
+    }
+
+    @Override
+    public void refresh() {
+        forgetWindows();
+        final int[] transitions = flexer.transitions();
+        ShortRunVector.Transient states = ShortRunVector.EMPTY.asTransient().push((short) Flexer.START_ID);
+        int[] id = {Flexer.START_ID};
+        ByteVector.ChunkVisitor lexer = (chunk, from, to, origin) -> {
+            for (int i = from; i < to; ++i) {
+                id[0] = transitions[id[0] << 7 | Flexer.column((char) (chunk[i] & 255))];
+                if (chunk[i] == '\n') {
+                    states.push((short) id[0]);
+                }
+            }
+        };
+        text.before().forEachChunk(lexer);
+        text.after().forEachChunk(lexer);
+        checkpoints = states.persistent();
+    }
+
+    // Relexing stops as soon as a new checkpoint agrees with the old one behind the edit.
+    @Override
+    public void fix(int start, int removed, int inserted) {
+        forgetWindows();
+        final int[] transitions = flexer.transitions();
+        final ShortRunVector old = checkpoints;
+        final int rowDelta = text.rows() - old.size();
+        int row = text.rowOfPosition(start);
+        ShortRunVector.Transient fixed = old.take(row + 1).asTransient();
+        int id = Short.toUnsignedInt(old.get(row));
+        final int len = text.length();
+        for (int i = text.homePositionOfRow(row); i < len; ++i) {
+            char c = text.charAt(i);
+            id = transitions[id << 7 | Flexer.column(c)];
+            if (c == '\n') {
+                ++row;
+                if (i >= start + inserted && old.get(row - rowDelta) == (short) id) {
+                    checkpoints = fixed.persistent().concat(old.drop(row - rowDelta));
+                    return;
+                }
+                fixed.push((short) id);
+            }
+        }
+        checkpoints = fixed.persistent();
+    }
+}
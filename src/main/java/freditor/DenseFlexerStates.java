@@ -0,0 +1,454 @@
+package freditor;
+
+import freditor.persistent.ByteVector;
+import freditor.persistent.ShortRunVector;
+
+import java.awt.EventQueue;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Stores the dense id of every state, run-length encoded, so long comments,
+ * string literals and indentation take next to no memory. Heads are stored negative,
+ * with the sign bit set, so lexeme boundaries are found by rank and select.
+ * The nesting of each state weighs in as a prefix sum, so brackets match in O(log n).
+ * <p>
+ * On the event dispatch thread, large documents are only lexed up to a few hundred
+ * rows past the cursor. The rest is lexed in the background, from a snapshot of the
+ * text, and published back to the event dispatch thread in batches. Asking for a
+ * state that has not arrived yet lexes up to it on the spot.
+ */
+final class DenseFlexerStates implements FlexerStates {
+    private static final int EAGER_CHARACTERS = 1 << 16;
+    private static final int EAGER_ROWS = 256;
+    private static final int BATCH = 1 << 16;
+    private static final int RELEX_BUDGET = 1 << 15;
+    private static final int CHUNK = 1 << 16;
+
+    private final Freditor text;
+    private final Flexer flexer;
+    private final Tables tables;
+
+    // states of [0, ids.size()), the rest of the text is not lexed yet
+    private ShortRunVector ids;
+    // old states from ids.size() on, cut short by a relex; they are taken over
+    // as soon as a freshly lexed state agrees with one of them
+    private ShortRunVector pending;
+    // background results of an older generation are stale
+    private volatile int generation;
+    // generation of the task lexing the current text in the background, if any
+    private int backgroundGeneration = -1;
+
+    DenseFlexerStates(Freditor text) {
+        this.text = text;
+        this.flexer = text.flexer;
+        this.tables = new Tables(flexer);
+        this.ids = tables.empty;
+        this.pending = tables.empty;
+    }
+
+    static final class Tables {
+        final int[] transitions;
+        final long[] selfLoops;
+        // the stored form of each id
+        final short[] codes;
+        // weighs codes by nesting
+        final ShortRunVector empty;
+
+        Tables(Flexer flexer) {
+            transitions = flexer.transitions();
+            selfLoops = flexer.selfLoops();
+            codes = new short[flexer.numberOfStates()];
+            byte[] nestings = new byte[1 << 16];
+            for (int id = 0; id < codes.length; ++id) {
+                FlexerState state = flexer.stateOf(id);
+                codes[id] = (short) (state.isHead ? id | HEAD : id);
+                nestings[codes[id] & 0xffff] = state.nesting;
+            }
+            empty = ShortRunVector.empty(nestings);
+        }
+    }
+
+    private static final int HEAD = 0x8000;
+
+    static int idOf(short code) {
+        return code & ~HEAD & 0xffff;
+    }
+
+    @Override
+    public FlexerState stateAt(int index) {
+        if (index < 0) return Flexer.END;
+
+        if (index >= ids.size()) {
+            final int len = text.length();
+            if (index >= len) return Flexer.END;
+
+            lexUpTo(Math.min(index + BATCH, len));
+        }
+        return flexer.stateOf(idOf(ids.get(index)));
+    }
+
+    private int lastId() {
+        return ids.isEmpty() ? Flexer.START_ID : idOf(ids.get(ids.size() - 1));
+    }
+
+    // heads before index + 1 and from index + 1, as counted by rank and select
+
+    @Override
+    public int startOfLexeme(int index) {
+        stateAt(index);
+        int heads = ids.negativesBefore(index + 1);
+        return heads == 0 ? -1 : ids.indexOfNegative(heads - 1);
+    }
+
+    @Override
+    public int endOfLexeme(int index) {
+        stateAt(index);
+        int heads = ids.negativesBefore(index + 1);
+        int end = ids.indexOfNegative(heads);
+        final int len = text.length();
+        while (end < 0 && ids.size() < len) {
+            lexUpTo(Math.min(ids.size() + BATCH, len));
+            end = ids.indexOfNegative(heads);
+        }
+        return end < 0 ? len : end;
+    }
+
+    // nesting of [start, end) is weightBefore(end) - weightBefore(start)
+
+    @Override
+    public int nestingOf(int start, int end) {
+        end = Math.min(end, text.length());
+        if (start >= end) return 0;
+
+        stateAt(end - 1);
+        return ids.weightBefore(end) - ids.weightBefore(start);
+    }
+
+    @Override
+    public int closingAfter(int start, int end, int depth) {
+        return indexOfNesting(start, end, depth, 1);
+    }
+
+    @Override
+    public int openingAfter(int start, int end, int depth) {
+        return indexOfNesting(start, end, depth, -1);
+    }
+
+    // forward searches lex batch by batch, like endOfLexeme
+    private int indexOfNesting(int start, int end, int depth, int sign) {
+        final int len = text.length();
+        final int limit = Math.min(end, len);
+        if (start < 0 || start >= limit) return -1;
+
+        stateAt(start);
+        final int weight = ids.weightBefore(start) - sign * depth;
+        while (true) {
+            int x = sign > 0 ? ids.indexOfWeightBelow(start, weight) : ids.indexOfWeightAbove(start, weight);
+            if (x >= 0) return x <= limit ? x - 1 : -1;
+            if (ids.size() >= limit) return -1;
+
+            lexUpTo(Math.min(ids.size() + BATCH, len));
+        }
+    }
+
+    @Override
+    public int openingBefore(int start, int end, int depth) {
+        return lastIndexOfNesting(start, end, depth, 1);
+    }
+
+    @Override
+    public int closingBefore(int start, int end, int depth) {
+        return lastIndexOfNesting(start, end, depth, -1);
+    }
+
+    private int lastIndexOfNesting(int start, int end, int depth, int sign) {
+        end = Math.min(end, text.length());
+        if (start < 0 || start >= end) return -1;
+
+        stateAt(end - 1);
+        final int weight = ids.weightBefore(end) - sign * depth;
+        int x = sign > 0 ? ids.lastIndexOfWeightBelow(end, weight) : ids.lastIndexOfWeightAbove(end, weight);
+        return x >= start ? x : -1;
+    }
+
+    private static int lex(ByteVector text, int start, int end, int startId, Tables tables, ShortRunVector.Transient states) {
+        if (end - start >= 2 * CHUNK && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            return lexInParallel(text, start, end, startId, tables, states);
+        }
+        final int[] transitions = tables.transitions;
+        final long[] selfLoops = tables.selfLoops;
+        final short[] codes = tables.codes;
+        int[] id = {startId};
+        text.forEachChunk(start, end, (chunk, from, to, origin) -> {
+            int state = id[0];
+            for (int i = from; i < to; ) {
+                state = transitions[state << 7 | Flexer.column((char) (chunk[i++] & 255))];
+                states.push(codes[state]);
+                // comments, strings, identifiers and spaces loop on themselves for a while
+                int run = i;
+                while (run < to && Flexer.isSelfLoop(selfLoops, state, chunk[run])) {
+                    ++run;
+                }
+                if (run > i) {
+                    states.pushRun(codes[state], run - i);
+                    i = run;
+                }
+            }
+            id[0] = state;
+        });
+        return id[0];
+    }
+
+    private static short[] lexChunk(ByteVector text, int start, int end, int startId, Tables tables) {
+        final int[] transitions = tables.transitions;
+        final long[] selfLoops = tables.selfLoops;
+        final short[] codes = tables.codes;
+        short[] states = new short[end - start];
+        int[] id = {startId};
+        text.forEachChunk(start, end, (chunk, from, to, origin) -> {
+            int state = id[0];
+            for (int i = from; i < to; ) {
+                state = transitions[state << 7 | Flexer.column((char) (chunk[i++] & 255))];
+                int run = i;
+                while (run < to && Flexer.isSelfLoop(selfLoops, state, chunk[run])) {
+                    ++run;
+                }
+                Arrays.fill(states, origin + i - 1 - start, origin + run - start, codes[state]);
+                i = run;
+            }
+            id[0] = state;
+        });
+        return states;
+    }
+
+    // All chunks but the first are lexed speculatively from START_ID, which every state
+    // falls back to at the end of a lexeme. The stitching pass relexes the beginning
+    // of a mispredicted chunk from the actual state until it agrees with the speculation,
+    // usually after a handful of characters.
+    static int lexInParallel(ByteVector text, int start, int end, int startId, Tables tables, ShortRunVector.Transient states) {
+        final int chunks = (end - start + CHUNK - 1) / CHUNK;
+        final short[][] speculated = new short[chunks][];
+        IntStream.range(0, chunks).parallel().forEach(k -> {
+            int from = start + k * CHUNK;
+            int to = Math.min(from + CHUNK, end);
+            speculated[k] = lexChunk(text, from, to, k == 0 ? startId : Flexer.START_ID, tables);
+        });
+        for (int k = 1; k < chunks; ++k) {
+            short[] previous = speculated[k - 1];
+            int id = idOf(previous[previous.length - 1]);
+            if (id == Flexer.START_ID) continue;
+
+            short[] chunk = speculated[k];
+            int from = start + k * CHUNK;
+            for (int j = 0; j < chunk.length; ++j) {
+                id = tables.transitions[id << 7 | Flexer.column((char) (text.byteAt(from + j) & 255))];
+                if (chunk[j] == tables.codes[id]) break;
+                chunk[j] = tables.codes[id];
+            }
+        }
+        for (short[] chunk : speculated) {
+            for (short id : chunk) {
+                states.push(id);
+            }
+        }
+        short[] last = speculated[chunks - 1];
+        return idOf(last[last.length - 1]);
+    }
+
+    private void lexUpTo(int end) {
+        final int start = ids.size();
+        final ByteVector snapshot = text.before().concat(text.after());
+        ShortRunVector.Transient states = tables.empty.asTransient();
+        lex(snapshot, start, end, lastId(), tables, states);
+        append(states.persistent());
+        completeInBackground();
+    }
+
+    private void append(ShortRunVector lexed) {
+        int j = agreement(lexed, pending);
+        if (j >= 0) {
+            ids = ids.concat(resynchronized(lexed, pending, j));
+            pending = tables.empty;
+        } else {
+            ids = ids.concat(lexed);
+            pending = pending.drop(lexed.size());
+        }
+    }
+
+    // Finds the first index where the lexed states agree with the old ones, or -1.
+    // From there on, the old states are right again.
+    private static int agreement(ShortRunVector lexed, ShortRunVector old) {
+        final int n = Math.min(lexed.size(), old.size());
+        for (int j = 0; j < n; ++j) {
+            if (lexed.get(j) == old.get(j)) return j;
+        }
+        return -1;
+    }
+
+    // the lexed states up to j, then the old ones, and the lexed ones beyond the old ones
+    private static ShortRunVector resynchronized(ShortRunVector lexed, ShortRunVector old, int j) {
+        return lexed.take(j).concat(old.drop(j)).concat(lexed.drop(old.size()));
+    }
+
+    @Override
+    public void refresh() {
+        ++generation;
+        ids = tables.empty;
+        pending = tables.empty;
+        final int len = text.length();
+        if (len <= EAGER_CHARACTERS) {
+            lexUpTo(len);
+        } else {
+            int row = text.rowOfPosition(Math.min(text.cursor(), len));
+            lexUpTo(Math.max(text.homePositionOfRow(row + EAGER_ROWS), EAGER_CHARACTERS));
+        }
+    }
+
+    private void completeInBackground() {
+        final int start = ids.size();
+        final int len = text.length();
+        if (start >= len) return;
+        // the running task still lexes the current text, wherever ids ends by now
+        if (backgroundGeneration == generation) return;
+
+        if (!EventQueue.isDispatchThread()) {
+            // without an event dispatch thread to publish to, the caller waits
+            lexUpTo(len);
+            return;
+        }
+        final int expected = ++generation;
+        backgroundGeneration = expected;
+        final ByteVector snapshot = text.before().concat(text.after());
+        final int startId = lastId();
+        final ShortRunVector resync = pending;
+        // one chunk per core and round
+        final int round = BATCH * ForkJoinPool.getCommonPoolParallelism();
+        ForkJoinPool.commonPool().execute(() -> {
+            int id = startId;
+            ShortRunVector old = resync;
+            for (int from = start; from < len && generation == expected; ) {
+                final int to = Math.min(from + round, len);
+                ShortRunVector.Transient states = tables.empty.asTransient();
+                id = lex(snapshot, from, to, id, tables, states);
+                ShortRunVector batch = states.persistent();
+                int j = agreement(batch, old);
+                if (j >= 0) {
+                    batch = resynchronized(batch, old, j);
+                    id = idOf(batch.get(batch.size() - 1));
+                    old = tables.empty;
+                } else {
+                    old = old.drop(batch.size());
+                }
+                final int batchStart = from;
+                final ShortRunVector published = batch;
+                EventQueue.invokeLater(() -> publish(expected, batchStart, published));
+                from += batch.size();
+            }
+        });
+    }
+
+    // lexing on demand may have overtaken the background in the meantime
+    private void publish(int expected, int start, ShortRunVector batch) {
+        final int size = ids.size();
+        if (generation == expected && start <= size && size < start + batch.size()) {
+            ids = ids.concat(batch.drop(size - start));
+            pending = pending.drop(start + batch.size() - size);
+        }
+    }
+
+    boolean isComplete() {
+        return ids.size() == text.length();
+    }
+
+    @Override
+    public void fix(int start, int removed, int inserted) {
+        fix(new int[]{start}, new int[]{removed}, new int[]{inserted}, 1);
+    }
+
+    // Relexing stops as soon as a new state agrees with the old one behind an edit,
+    // and resumes at the next edit, or where the old states end if the background lexer
+    // has not caught up yet. Edits whose relexing runs into each other merge.
+    // On the event dispatch thread, a change that keeps propagating, like an opening quote
+    // near the top of a big file, stops after RELEX_BUDGET characters and truncates the
+    // states there; the background lexer finishes the job. The old states behind the cut
+    // stay pending, so typing the closing quote lets the states agree again right away.
+    // As long as the change keeps propagating, each keystroke relexes in the background
+    // up to the end of the file; that cost is accepted, since it stays off the event dispatch thread.
+    @Override
+    public void fix(int[] starts, int[] removed, int[] inserted, int count) {
+        // snapshots of the old text are stale
+        ++generation;
+        final ShortRunVector old = ids;
+        final ShortRunVector tentative = pending;
+        // the old states are one run up to verified, and the pending ones another up to known;
+        // agreeing with a state vouches for the rest of its run, but not for the other run
+        final int verified = old.size();
+        final int known = verified + tentative.size();
+        if (count > 0 && starts[0] <= verified) {
+            final int[] transitions = tables.transitions;
+            final short[] codes = tables.codes;
+            final boolean budgeted = EventQueue.isDispatchThread();
+            int k = 0;
+            // new index - old index behind edit k
+            int delta = inserted[0] - removed[0];
+            ShortRunVector.Transient fixed = old.take(starts[0]).asTransient();
+            int id = starts[0] > 0 ? idOf(old.get(starts[0] - 1)) : Flexer.START_ID;
+            final int len = text.length();
+            int i = starts[0];
+            while (i < len) {
+                while (k + 1 < count && i >= starts[k + 1]) {
+                    ++k;
+                    delta += inserted[k] - removed[k];
+                }
+                final int editEnd = starts[k] + inserted[k];
+                final int o = i - delta;
+                if (i >= editEnd && o >= known) break;
+
+                if (budgeted && i >= editEnd + RELEX_BUDGET) {
+                    ids = fixed.persistent();
+                    // the old states are good for nothing behind the next edit
+                    ShortRunVector run = o < verified ? old.drop(o) : tentative.drop(o - verified);
+                    pending = run.take((k + 1 < count ? starts[k + 1] : len) - i);
+                    completeInBackground();
+                    return;
+                }
+                id = transitions[id << 7 | Flexer.column(text.charAt(i))];
+                if (i >= editEnd && (o < verified ? old.get(o) : tentative.get(o - verified)) == codes[id]) {
+                    if (k + 1 == count || starts[k + 1] - delta > (o < verified ? verified : known)) break;
+
+                    // the old states are good up to the next edit
+                    final int next = starts[k + 1];
+                    ShortRunVector run = o < verified ? old.drop(o) : tentative.drop(o - verified);
+                    fixed = fixed.persistent().concat(run.take(next - i)).asTransient();
+                    id = idOf(run.get(next - 1 - i));
+                    i = next;
+                    continue;
+                }
+                fixed.push(codes[id]);
+                ++i;
+            }
+            // edits at the very end of the text were never reached
+            while (k + 1 < count && i >= starts[k + 1]) {
+                ++k;
+                delta += inserted[k] - removed[k];
+            }
+            final int o = i - delta;
+            if (o < verified) {
+                ids = fixed.persistent().concat(old.drop(o));
+                // the pending states are good up to the next edit
+                pending = k + 1 < count ? tentative.take(starts[k + 1] - delta - verified) : tentative;
+            } else {
+                ids = fixed.persistent().concat(tentative.drop(o - verified));
+                pending = tables.empty;
+            }
+        } else if (count > 0) {
+            // the pending states are good up to the edit
+            pending = tentative.take(starts[0] - verified);
+        }
+        if (ids.size() < text.length()) {
+            completeInBackground();
+        }
+    }
+}
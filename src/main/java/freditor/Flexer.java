@@ -1,5 +1,12 @@
 package freditor;
 
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
 import static freditor.FlexerState.EMPTY;
 import static freditor.FlexerState.THIS;
 
@@ -41,6 +48,222 @@ public abstract class Flexer {
         if (nextState == null) {
             nextState = start().next(input);
         }
-        return nextState;
+        return representative(nextState);
+    }
+
+    // DENSE NUMBERING AND TRANSITION TABLE
+
+    private static final class Numbering {
+        final FlexerState[] states;
+        // maps every reachable state to the id of its representative
+        final IdentityHashMap<FlexerState, Integer> ids = new IdentityHashMap<>();
+        // transitions[id << 7 | column(c)] is the id of nextState(stateOf(id), c), or -1
+        final int[] transitions;
+        // bit c of selfLoops[id << 2 | c >> 6] is set if c leads from id back to id
+        final long[] selfLoops;
+        // whether minimization merged any states, otherwise every state represents itself
+        final boolean merged;
+
+        Numbering(FlexerState start, Set<FlexerState> distinguished) {
+            ArrayList<FlexerState> reachable = new ArrayList<>();
+            IdentityHashMap<FlexerState, Integer> index = new IdentityHashMap<>();
+            number(start, reachable, index);
+            // breadth first, so the list grows while we walk it
+            for (int i = 0; i < reachable.size(); ++i) {
+                reachable.get(i).forEachSuccessor(next -> number(next, reachable, index));
+            }
+            // dense storage reserves the sign bit for heads
+            if (reachable.size() > 32768) throw new IllegalStateException(reachable.size() + " states exceed 15 bits");
+
+            final int n = reachable.size();
+            int[] table = new int[n << 7];
+            for (int i = 0; i < n; ++i) {
+                for (char c = 0; c < 128; ++c) {
+                    FlexerState next = reachable.get(i).next(c);
+                    if (next == null) {
+                        next = start.next(c);
+                    }
+                    table[i << 7 | c] = next == null ? -1 : index.get(next);
+                }
+            }
+
+            int[] classes = distinguished == null ? identity(n) : minimize(reachable, table, distinguished);
+            int m = 0;
+            for (int c : classes) {
+                m = Math.max(m, c + 1);
+            }
+            merged = m < n;
+            states = new FlexerState[m];
+            transitions = new int[m << 7];
+            for (int i = 0; i < n; ++i) {
+                int id = classes[i];
+                ids.put(reachable.get(i), id);
+                if (states[id] == null) {
+                    states[id] = reachable.get(i);
+                    for (int c = 0; c < 128; ++c) {
+                        int next = table[i << 7 | c];
+                        transitions[id << 7 | c] = next == -1 ? -1 : classes[next];
+                    }
+                }
+            }
+            selfLoops = new long[m << 2];
+            for (int id = 0; id < m; ++id) {
+                for (int c = 0; c < 256; ++c) {
+                    if (transitions[id << 7 | COLUMNS[c]] == id) {
+                        selfLoops[id << 2 | c >> 6] |= 1L << c;
+                    }
+                }
+            }
+        }
+
+        private static void number(FlexerState state, ArrayList<FlexerState> reachable, IdentityHashMap<FlexerState, Integer> index) {
+            if (state != null && !index.containsKey(state)) {
+                index.put(state, reachable.size());
+                reachable.add(state);
+            }
+        }
+
+        private static int[] identity(int n) {
+            int[] classes = new int[n];
+            for (int i = 0; i < n; ++i) {
+                classes[i] = i;
+            }
+            return classes;
+        }
+
+        // Moore's partition refinement: states start out apart if they differ in isHead or nesting,
+        // or if they are distinguished, and split further until all members of a class agree on
+        // the classes of their successors. Classes are numbered in order of their first member,
+        // so the start state keeps id 0 and every class is represented by its first member.
+        private static int[] minimize(ArrayList<FlexerState> reachable, int[] table, Set<FlexerState> distinguished) {
+            final int n = reachable.size();
+            int[] classes = new int[n];
+            HashMap<IntBuffer, Integer> signatures = new HashMap<>();
+            for (int i = 0; i < n; ++i) {
+                FlexerState state = reachable.get(i);
+                int[] signature = distinguished.contains(state) || i == START_ID
+                        ? new int[]{-1, i}
+                        : new int[]{state.isHead ? 1 : 0, state.nesting};
+                classes[i] = classify(signatures, signature);
+            }
+            int count = signatures.size();
+            while (true) {
+                signatures.clear();
+                int[] refined = new int[n];
+                for (int i = 0; i < n; ++i) {
+                    int[] signature = new int[129];
+                    signature[128] = classes[i];
+                    for (int c = 0; c < 128; ++c) {
+                        int next = table[i << 7 | c];
+                        signature[c] = next == -1 ? -1 : classes[next];
+                    }
+                    refined[i] = classify(signatures, signature);
+                }
+                classes = refined;
+                if (signatures.size() == count) return classes;
+
+                count = signatures.size();
+            }
+        }
+
+        private static int classify(HashMap<IntBuffer, Integer> signatures, int[] signature) {
+            // IntBuffer compares its contents
+            return signatures.computeIfAbsent(IntBuffer.wrap(signature), key -> signatures.size());
+        }
+    }
+
+    private static final Set<FlexerState> SENTINELS = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    static {
+        Collections.addAll(SENTINELS, END, ERROR,
+                OPENING_PAREN, CLOSING_PAREN, OPENING_BRACKET, CLOSING_BRACKET, OPENING_BRACE, CLOSING_BRACE,
+                NEWLINE, SPACE_TAIL, SPACE_HEAD);
+    }
+
+    /**
+     * Returns the states that this flexer tells apart by identity, for example in pickColorForLexeme,
+     * or null if any state might be compared by identity, which disables minimization.
+     * <p>
+     * Otherwise, behaviorally equivalent states share a dense id and stateOf returns the first of them.
+     * The start state and the public sentinels of Flexer are never merged.
+     * <p>
+     * Minimization is opt-in: by default, this returns null and the transition table keeps one row
+     * per reachable state. To shrink it, override this with the states your pickColorForLexeme and
+     * friends compare against, typically the end states of keywords.
+     */
+    protected Set<FlexerState> distinguishedStates() {
+        return null;
+    }
+
+    // numbering starts with start(), which also stands in for the state before the first character
+    static final int START_ID = 0;
+
+    private volatile Numbering numbering;
+
+    private Numbering numbering() {
+        Numbering result = numbering;
+        if (result == null) {
+            // racing threads compute the same numbering
+            Set<FlexerState> distinguished = distinguishedStates();
+            if (distinguished != null) {
+                Set<FlexerState> union = Collections.newSetFromMap(new IdentityHashMap<>());
+                union.addAll(SENTINELS);
+                union.addAll(distinguished);
+                distinguished = union;
+            }
+            numbering = result = new Numbering(start(), distinguished);
+        }
+        return result;
+    }
+
+    /**
+     * Every state reachable from start() has a dense id in [0, numberOfStates()).
+     */
+    public final int numberOfStates() {
+        return numbering().states.length;
+    }
+
+    public final int idOf(FlexerState state) {
+        Integer id = numbering().ids.get(state);
+        if (id == null) throw new IllegalArgumentException("state unreachable from start");
+
+        return id;
+    }
+
+    public final FlexerState stateOf(int id) {
+        return numbering().states[id];
+    }
+
+    private FlexerState representative(FlexerState state) {
+        Numbering numbering = numbering();
+        if (!numbering.merged) return state;
+
+        Integer id = numbering.ids.get(state);
+        return id == null ? state : numbering.states[id];
+    }
+
+    final int[] transitions() {
+        return numbering().transitions;
+    }
+
+    final long[] selfLoops() {
+        return numbering().selfLoops;
+    }
+
+    static boolean isSelfLoop(long[] selfLoops, int id, byte b) {
+        return (selfLoops[id << 2 | (b & 255) >> 6] & 1L << b) != 0;
+    }
+
+    private static final byte[] COLUMNS = new byte[256];
+
+    static {
+        // FlexerState.next only looks at the lower 6 bits above 63
+        for (int c = 0; c < 256; ++c) {
+            COLUMNS[c] = (byte) (c < 64 ? c : 64 | c & 63);
+        }
+    }
+
+    static int column(char c) {
+        return COLUMNS[c];
     }
 }
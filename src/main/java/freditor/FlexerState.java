@@ -2,6 +2,7 @@ package freditor;
 
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 public class FlexerState {
     private FlexerState defaultValue;
@@ -248,6 +249,15 @@ public class FlexerState {
         return this;
     }
 
+    void forEachSuccessor(Consumer<FlexerState> action) {
+        for (FlexerState state : next) {
+            action.accept(state);
+        }
+        if (defaultValue != null) {
+            action.accept(defaultValue);
+        }
+    }
+
     public FlexerState next(char c) {
         long m = 1L << c;
         if (c < 64) {
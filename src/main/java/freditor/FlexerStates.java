@@ -0,0 +1,111 @@
+package freditor;
+
+/**
+ * Bookkeeping of the lexer state after each character of a Freditor.
+ */
+interface FlexerStates {
+    FlexerState stateAt(int index);
+
+    /**
+     * Finds the head at or before index, or -1.
+     */
+    default int startOfLexeme(int index) {
+        while (!stateAt(index).isHead) {
+            --index;
+        }
+        return index;
+    }
+
+    /**
+     * Finds the head after index, or the length of the text.
+     */
+    default int endOfLexeme(int index) {
+        FlexerState state;
+        do {
+            state = stateAt(++index);
+        } while (!state.isHead);
+        return index;
+    }
+
+    /**
+     * Sums the nesting of [start, end).
+     */
+    default int nestingOf(int start, int end) {
+        int nesting = 0;
+        for (int i = start; i < end; ++i) {
+            nesting += stateAt(i).nesting;
+        }
+        return nesting;
+    }
+
+    /**
+     * Finds the first index i in [start, end) where the nesting of [start, i] drops below -depth, or -1.
+     */
+    default int closingAfter(int start, int end, int depth) {
+        int nesting = 0;
+        for (int i = start; i < end; ++i) {
+            nesting += stateAt(i).nesting;
+            if (nesting < -depth) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first index i in [start, end) where the nesting of [start, i] rises above depth, or -1.
+     */
+    default int openingAfter(int start, int end, int depth) {
+        int nesting = 0;
+        for (int i = start; i < end; ++i) {
+            nesting += stateAt(i).nesting;
+            if (nesting > depth) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the last index i in [start, end) where the nesting of [i, end) rises above depth, or -1.
+     */
+    default int openingBefore(int start, int end, int depth) {
+        int nesting = 0;
+        for (int i = end - 1; i >= start; --i) {
+            nesting += stateAt(i).nesting;
+            if (nesting > depth) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the last index i in [start, end) where the nesting of [i, end) drops below -depth, or -1.
+     */
+    default int closingBefore(int start, int end, int depth) {
+        int nesting = 0;
+        for (int i = end - 1; i >= start; --i) {
+            nesting += stateAt(i).nesting;
+            if (nesting < -depth) return i;
+        }
+        return -1;
+    }
+
+    void refresh();
+
+    /**
+     * The text [start, start + inserted) replaced [start, start + removed).
+     */
+    void fix(int start, int removed, int inserted);
+
+    /**
+     * Like fix(starts[k], removed[k], inserted[k]) for every k below count,
+     * with all replacements already in the text. The starts ascend and refer to the new text.
+     */
+    default void fix(int[] starts, int[] removed, int[] inserted, int count) {
+        if (count == 0) return;
+
+        final int start = starts[0];
+        final int end = starts[count - 1] + inserted[count - 1];
+        int delta = 0;
+        for (int k = 0; k < count; ++k) {
+            delta += inserted[k] - removed[k];
+        }
+        fix(start, end - start - delta, end - start);
+    }
+}
@@ -1,7 +1,5 @@
 package freditor;
 
-import freditor.ephemeral.GapBuffer;
-import freditor.ephemeral.IntStack;
 import freditor.persistent.ByteVector;
 
 import java.io.IOException;
@@ -10,7 +8,6 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.function.IntConsumer;
@@ -20,50 +17,87 @@ import java.util.regex.Pattern;
 import static freditor.Maths.atLeastZero;
 
 public final class Freditor extends CharZipper {
-    private final IntStack lineBreaksBefore;
-    private final IntStack lineBreaksAfter;
-
-    private final GapBuffer<FlexerState> flexerStates;
-
     public final Flexer flexer;
     public final Indenter indenter;
     public final Path file;
 
-    public Freditor(Flexer flexer, Indenter indenter, Path file) {
-        lineBreaksBefore = new IntStack();
-        lineBreaksAfter = new IntStack();
-
-        flexerStates = new GapBuffer<>();
+    private FlexerStates flexerStates;
 
+    public Freditor(Flexer flexer, Indenter indenter, Path file) {
         this.flexer = flexer;
         this.indenter = indenter;
         this.file = file;
+        flexerStates = new DenseFlexerStates(this);
+    }
+
+    public Freditor(Flexer flexer, Indenter indenter, Path file, int undoBudget) {
+        this(flexer, indenter, file);
+        setUndoBudget(undoBudget);
     }
 
     private int origin;
     private int cursor;
     private int desiredColumn;
 
-    private class Memento extends CharZipper.Memento {
-        private final int origin = Freditor.this.origin;
-        private final int cursor = Freditor.this.cursor;
-        private final int desiredColumn = Freditor.this.desiredColumn;
+    private void refreshBookkeeping() {
+        dirtyStart = -1;
+        flexerStates.refresh();
+    }
 
-        @Override
-        public void restore() {
-            super.restore();
+    // BATCHES
 
-            Freditor.this.origin = origin;
-            Freditor.this.cursor = cursor;
-            Freditor.this.desiredColumn = desiredColumn;
+    private int batches;
+    // the states of a batch are stale after dirtyStart, except for the last cleanSuffix characters,
+    // which were the last cleanSuffix characters of the lengthBeforeBatch characters before
+    private int dirtyStart = -1;
+    private int cleanSuffix;
+    private int lengthBeforeBatch;
 
-            refreshBookkeeping();
+    /**
+     * Starts a batch of edits. The lexer states catch up once, from the earliest edit,
+     * when the outermost batch commits, or as soon as somebody needs them. Batches nest.
+     */
+    public void beginBatch() {
+        ++batches;
+    }
+
+    public void commitBatch() {
+        if (batches == 0) throw new IllegalStateException("commitBatch without beginBatch");
+
+        if (--batches == 0) {
+            flushStates();
         }
     }
 
-    private void refreshBookkeeping() {
-        refreshLineBreaks();
-        refreshFlexerStates();
+    private FlexerStates states() {
+        flushStates();
+        return flexerStates;
+    }
+
+    private void flushStates() {
+        if (dirtyStart < 0) return;
+
+        final int start = dirtyStart;
+        dirtyStart = -1;
+        flexerStates.fix(start, lengthBeforeBatch - cleanSuffix - start, length() - cleanSuffix - start);
+    }
+
+    // [start, start + inserted) of the text replaced [start, start + removed)
+    private void fixStates(int start, int removed, int inserted) {
+        if (batches == 0) {
+            flexerStates.fix(start, removed, inserted);
+            return;
+        }
+        final int len = length();
+        final int suffix = len - start - inserted;
+        if (dirtyStart < 0) {
+            dirtyStart = start;
+            cleanSuffix = suffix;
+            lengthBeforeBatch = len - inserted + removed;
+        } else {
+            dirtyStart = Math.min(dirtyStart, start);
+            cleanSuffix = Math.min(cleanSuffix, suffix);
+        }
     }
 
     private void forgetDesiredColumn() {
@@ -111,78 +145,73 @@ public final class Freditor extends CharZipper {
         int start = selectionStart();
         int end = selectionEnd();
 
-        while (start > 0 && flexerStates.get(start - 1) != Flexer.NEWLINE) {
+        while (start > 0 && stateAt(start - 1) != Flexer.NEWLINE) {
             --start;
         }
-        while (end < len && flexerStates.get(end) != Flexer.NEWLINE) {
+        while (end < len && stateAt(end) != Flexer.NEWLINE) {
             ++end;
         }
 
         origin = start;
         cursor = end;
 
-        int nesting = 0;
-        for (int i = start; i < end; ++i) {
-            nesting += flexerStates.get(i).nesting;
-            if (nesting < 0) {
-                while (i > 0 && flexerStates.get(i - 1) == Flexer.SPACE_TAIL) --i;
-                if (i > 0 && flexerStates.get(i - 1) == Flexer.SPACE_HEAD) --i;
-                if (i > 0 && flexerStates.get(i - 1) == Flexer.NEWLINE) --i;
-                cursor = i;
-                return;
-            }
+        int i = states().closingAfter(start, end, 0);
+        if (i >= 0) {
+            while (i > 0 && stateAt(i - 1) == Flexer.SPACE_TAIL) --i;
+            if (i > 0 && stateAt(i - 1) == Flexer.SPACE_HEAD) --i;
+            if (i > 0 && stateAt(i - 1) == Flexer.NEWLINE) --i;
+            cursor = i;
+            return;
         }
+        int nesting = states().nestingOf(start, end);
         if (nesting == 0) return;
 
-        for (int i = end; i < len; ++i) {
-            nesting += flexerStates.get(i).nesting;
-            if (nesting == 0) {
-                cursor = i + 1;
-                return;
-            }
+        i = states().closingAfter(end, len, nesting - 1);
+        if (i >= 0) {
+            cursor = i + 1;
         }
     }
 
-    public int findTopLevelFrom(int start, FlexerState closer) {
-        int nesting = 0;
-
-        int lastCloser = -1;
-        for (int i = 0; i < start; ++i) {
-            FlexerState state = flexerStates.get(i);
-            nesting += state.nesting;
-            if (nesting == 0 && state == closer) {
-                lastCloser = i;
-            }
-        }
-        if (nesting == 0) return lastCloser + 1;
-
-        final int len = length();
-        for (int i = start; i < len; ++i) {
-            nesting += flexerStates.get(i).nesting;
-            if (nesting == 0) return i + 1;
-        }
-        return len;
+    /**
+     * Sums the nesting of [start, end).
+     */
+    public int nestingOf(int start, int end) {
+        return states().nestingOf(start, end);
     }
 
-    // LINE BREAKS
-
-    private void refreshLineBreaks() {
-        refreshLineBreaks(before(), lineBreaksBefore);
-        refreshLineBreaks(after(), lineBreaksAfter);
+    /**
+     * Finds the first closer in [start, end) that nothing in [start, end) opens, or -1.
+     */
+    public int findUnmatchedCloser(int start, int end) {
+        return states().closingAfter(start, end, 0);
     }
 
-    private static void refreshLineBreaks(ByteVector text, IntStack lineBreaks) {
-        lineBreaks.clear();
-        final int len = text.size();
-        for (int i = 0; i < len; ++i) {
-            if (text.byteAt(i) == '\n') {
-                lineBreaks.push(i);
-            }
+    public int findTopLevelFrom(int start, FlexerState closer) {
+        final int len = length();
+        int nesting = states().nestingOf(0, start);
+        if (nesting > 0) {
+            int i = states().closingAfter(start, len, nesting - 1);
+            return i >= 0 ? i + 1 : len;
+        }
+        if (nesting < 0) {
+            int i = states().openingAfter(start, len, -nesting - 1);
+            return i >= 0 ? i + 1 : len;
+        }
+        // walk back over the closers that return to top level
+        int end = start;
+        while (true) {
+            int i = states().closingBefore(0, end, 0);
+            if (i < 0) return 0;
+            if (stateAt(i) == closer) return i + 1;
+
+            end = states().openingBefore(0, i, 0);
         }
     }
 
+    // LINE BREAKS
+
     private int numberOfLineBreaks() {
-        return lineBreaksBefore.size() + lineBreaksAfter.size();
+        return before().newlines() + after().newlines();
     }
 
     public int rows() {
@@ -195,25 +224,24 @@ public final class Freditor extends CharZipper {
 
     public int homePositionOfRow(int row) {
         if (row == 0) return 0;
-        --row;
-        if (row < lineBreaksBefore.size()) return lineBreaksBefore.get(row) + 1;
-        final int n = numberOfLineBreaks();
-        if (row < n) return length() - 1 - lineBreaksAfter.get(n - 1 - row) + 1;
-        return length();
+        if (row > numberOfLineBreaks()) return length();
+        return endPositionOfRow(row - 1) + 1;
     }
 
     public int endPositionOfRow(int row) {
-        if (row < lineBreaksBefore.size()) return lineBreaksBefore.get(row);
-        final int n = numberOfLineBreaks();
-        if (row < n) return length() - 1 - lineBreaksAfter.get(n - 1 - row);
+        final int lineBreaksBefore = before().newlines();
+        if (row < lineBreaksBefore) return before().indexOfNewline(row);
+        final int index = after().indexOfNewline(row - lineBreaksBefore);
+        if (index >= 0) return before().size() + index;
         return length();
     }
 
     public int rowOfPosition(int position) {
-        if (position < before().size()) {
-            return lineBreaksBefore.binarySearch(position);
+        final int lenBefore = before().size();
+        if (position <= lenBefore) {
+            return before().newlinesBefore(position);
         } else {
-            return numberOfLineBreaks() - lineBreaksAfter.binarySearch(length() - position);
+            return before().newlines() + after().newlinesBefore(position - lenBefore);
         }
     }
 
@@ -232,177 +260,173 @@ public final class Freditor extends CharZipper {
     // FLEXER
 
     public FlexerState stateAt(int index) {
-        return flexerStates.getOrDefault(index, Flexer.END);
+        return states().stateAt(index);
     }
 
-    private void refreshFlexerStates() {
-        flexerStates.clear();
-        FlexerState state = flexer.start();
-        final int len = length();
-        for (int i = 0; i < len; ++i) {
-            char x = charAt(i);
-            state = flexer.nextState(state, x);
-            flexerStates.add(state);
-        }
+    public boolean isCheckpointedLexing() {
+        return flexerStates instanceof CheckpointedFlexerStates;
     }
 
-    private void fixFlexerStatesFrom(int index) {
-        FlexerState state = stateAt(index - 1);
-        final int len = length();
-        for (int i = index; i < len; ++i) {
-            char x = charAt(i);
-            state = flexer.nextState(state, x);
-            if (flexerStates.set(i, state) == state) return;
-        }
+    /**
+     * Checkpointed lexing keeps only one state per row instead of one per character
+     * and relexes rows on demand, trading speed for memory in very large documents.
+     */
+    public void setCheckpointedLexing(boolean checkpointed) {
+        if (checkpointed == isCheckpointedLexing()) return;
+
+        flexerStates = checkpointed ? new CheckpointedFlexerStates(this) : new DenseFlexerStates(this);
+        refreshBookkeeping();
     }
 
     public int startOfLexeme(int index) {
         final int len = length();
         if (index >= len) return len;
-        while (!flexerStates.get(index).isHead) {
-            --index;
-        }
-        return index;
+
+        return states().startOfLexeme(index);
     }
 
     public int endOfLexeme(int index) {
         final int len = length();
         if (index >= len) return len;
-        do {
-            ++index;
-        } while (index < len && !flexerStates.get(index).isHead);
-        return index;
+
+        return states().endOfLexeme(index);
     }
 
     public void findOpeningParen(int start, IntConsumer onPresent, Runnable onMissing) {
-        int nesting = 0;
-        for (int i = cursor - 1; i >= start; --i) {
-            nesting += flexerStates.get(i).nesting;
-            if (nesting > 0) {
-                onPresent.accept(i);
-                return;
-            }
+        int opening = states().openingBefore(start, cursor, 0);
+        if (opening >= 0) {
+            onPresent.accept(opening);
+        } else {
+            onMissing.run();
         }
-        onMissing.run();
     }
 
     public static final Runnable doNothing = () -> {
     };
 
     public void findClosingParen(int end, IntConsumer onPresent, Runnable onMissing) {
-        int nesting = 0;
-        for (int i = cursor; i < end; ++i) {
-            nesting += flexerStates.get(i).nesting;
-            if (nesting < 0) {
-                onPresent.accept(i);
-                return;
-            }
+        int closing = states().closingAfter(cursor, end, 0);
+        if (closing >= 0) {
+            onPresent.accept(closing);
+        } else {
+            onMissing.run();
         }
-        onMissing.run();
     }
 
     // CHARZIPPER OVERRIDES
 
     @Override
     public void clear() {
-        lineBreaksBefore.clear();
-        lineBreaksAfter.clear();
-
-        flexerStates.clear();
-
-        super.clear();
-    }
-
-    @Override
-    protected void focusOn(int index) {
-        super.focusOn(index);
-        final int len = length();
-        mirrorLineBreaks(lineBreaksBefore, lineBreaksAfter, index, len - 1);
-        mirrorLineBreaks(lineBreaksAfter, lineBreaksBefore, len - index, len - 1);
-    }
-
-    private void mirrorLineBreaks(IntStack src, IntStack dst, int threshold, int mirror) {
-        while (!src.isEmpty() && src.top() >= threshold) {
-            dst.push(mirror - src.pop());
+        if (history.isRecording() && length() > 0) {
+            history.recordRemoval(0, toByteArray());
         }
+        super.clear();
+        refreshBookkeeping();
     }
 
     @Override
     public void insertAt(int index, char x) {
         super.insertAt(index, x);
-        if (x == '\n') {
-            lineBreaksBefore.push(index);
-        }
-        flexerStates.add(index, FlexerState.EMPTY);
-        fixFlexerStatesFrom(index);
+        history.recordInsertion(index, new byte[]{(byte) x});
+        fixStates(index, 0, 1);
     }
 
     @Override
     public void insertAt(int index, CharSequence s) {
         super.insertAt(index, s);
-        final ByteVector before = before();
-        final int end = before.size();
-        for (int i = index; i < end; ++i) {
-            if (before.byteAt(i) == '\n') {
-                lineBreaksBefore.push(i);
-            }
-            flexerStates.add(i, FlexerState.EMPTY);
-        }
-        fixFlexerStatesFrom(index);
+        history.recordInsertion(index, bytesOf(s));
+        fixStates(index, 0, s.length());
     }
 
     private void insertAt(int index, char x, CharSequence s) {
         super.insertAt(index, x);
-        if (x == '\n') {
-            lineBreaksBefore.push(index);
-        }
-        flexerStates.add(index, FlexerState.EMPTY);
-
-        final int start = after().size();
         insertAfterFocus(s);
-        final ByteVector after = after();
-        final int end = after.size();
-        for (int i = start; i < end; ++i) {
-            if (after.byteAt(i) == '\n') {
-                lineBreaksAfter.push(i);
-            }
-            flexerStates.add(index + 1, FlexerState.EMPTY);
-        }
-        fixFlexerStatesFrom(index);
+        history.recordInsertion(index, bytesOf(x + s.toString()));
+        fixStates(index, 0, 1 + s.length());
     }
 
     @Override
     public byte deleteLeftOf(int index) {
         byte deleted = super.deleteLeftOf(index);
-        if (deleted == '\n') {
-            lineBreaksBefore.pop();
-        }
-        flexerStates.remove(index - 1);
-        fixFlexerStatesFrom(index - 1);
+        history.recordRemoval(index - 1, new byte[]{deleted});
+        fixStates(index - 1, 1, 0);
         return deleted;
     }
 
     @Override
     public byte deleteRightOf(int index) {
         byte deleted = super.deleteRightOf(index);
-        if (deleted == '\n') {
-            lineBreaksAfter.pop();
-        }
-        flexerStates.remove(index);
-        fixFlexerStatesFrom(index);
+        history.recordRemoval(index, new byte[]{deleted});
+        fixStates(index, 1, 0);
         return deleted;
     }
 
     @Override
     public String deleteRange(int start, int end) {
         String result = super.deleteRange(start, end);
-        int firstObsoleteLineBreak = lineBreaksBefore.binarySearch(start);
-        lineBreaksBefore.shrinkToSize(firstObsoleteLineBreak);
-        flexerStates.remove(start, end);
-        fixFlexerStatesFrom(start);
+        history.recordRemoval(start, bytesOf(result));
+        fixStates(start, end - start, 0);
         return result;
     }
 
+    // One undo record per range, last range first, so replaying them one by one
+    // finds every offset intact, unless a single record spanning all ranges is cheaper.
+    // The states are fixed around each range, in one go.
+    @Override
+    protected void replaceRanges(int[] starts, int[] ends, CharSequence[] replacements, int count) {
+        if (count == 0) return;
+
+        int[] newStarts = new int[count];
+        int[] removed = new int[count];
+        int[] inserted = new int[count];
+        int delta = 0;
+        long separateCost = 0;
+        for (int k = 0; k < count; ++k) {
+            newStarts[k] = starts[k] + delta;
+            removed[k] = ends[k] - starts[k];
+            inserted[k] = replacements[k].length();
+            delta += inserted[k] - removed[k];
+            separateCost += UndoHistory.EDIT_OVERHEAD + removed[k] + inserted[k];
+        }
+        final int start = starts[0];
+        final int end = ends[count - 1];
+        byte[] spanRemoved = null;
+        if (history.isRecording()) {
+            long spanCost = UndoHistory.EDIT_OVERHEAD + 2L * (end - start) + delta;
+            if (spanCost < separateCost) {
+                spanRemoved = bytesOf(subSequence(start, end));
+            } else {
+                for (int k = count - 1; k >= 0; --k) {
+                    history.record(starts[k], bytesOf(subSequence(starts[k], ends[k])), bytesOf(replacements[k]));
+                }
+            }
+        }
+        super.replaceRanges(starts, ends, replacements, count);
+        if (spanRemoved != null) {
+            history.record(start, spanRemoved, bytesOf(subSequence(start, end + delta)));
+        }
+        if (batches == 0) {
+            flexerStates.fix(newStarts, removed, inserted, count);
+        } else {
+            fixStates(start, end - start, end - start + delta);
+        }
+    }
+
+    private void replaceRanges(Splices splices) {
+        replaceRanges(splices.starts, splices.ends, splices.replacements, splices.count);
+    }
+
+    // replays a recorded edit without recording it again
+    private void replay(int offset, int removed, byte[] inserted) {
+        if (removed > 0) {
+            super.deleteRange(offset, offset + removed);
+        }
+        if (inserted.length > 0) {
+            super.insertAt(offset, new String(inserted, StandardCharsets.ISO_8859_1));
+        }
+        fixStates(offset, removed, inserted.length);
+    }
+
     // CURSOR
 
     public int cursor() {
@@ -488,35 +512,70 @@ public final class Freditor extends CharZipper {
 
     // TEXT MANIPULATION
 
-    private final ArrayDeque<Memento> past = new ArrayDeque<>();
-    private final ArrayDeque<Memento> future = new ArrayDeque<>();
+    private final UndoHistory history = new UndoHistory();
 
     private int lastCursor = -1;
     private EditorAction lastAction = EditorAction.OTHER;
 
+    public int undoBudget() {
+        return history.budget();
+    }
+
+    public void setUndoBudget(int bytes) {
+        history.setBudget(bytes);
+    }
+
+    int undoable() {
+        return history.undoable();
+    }
+
     private void commit() {
-        past.push(new Memento());
-        future.clear();
+        history.commit(origin, cursor, desiredColumn);
     }
 
     public void undo() {
-        if (past.isEmpty()) return;
+        UndoHistory.Group group = history.undo();
+        if (group == null) return;
 
-        future.push(new Memento());
-        past.pop().restore();
+        group.redoOrigin = origin;
+        group.redoCursor = cursor;
+        group.redoDesiredColumn = desiredColumn;
+        revert(group);
         lastAction = EditorAction.OTHER;
     }
 
-    public void redo() {
-        if (future.isEmpty()) return;
+    private void revert(UndoHistory.Group group) {
+        beginBatch();
+        for (int i = group.edits.size() - 1; i >= 0; --i) {
+            UndoHistory.Edit edit = group.edits.get(i);
+            replay(edit.offset, edit.inserted.length, edit.removed);
+        }
+        commitBatch();
+        origin = group.origin;
+        cursor = group.cursor;
+        desiredColumn = group.desiredColumn;
+    }
 
-        past.push(new Memento());
-        future.pop().restore();
+    public void redo() {
+        UndoHistory.Group group = history.redo();
+        if (group == null) return;
+
+        group.origin = origin;
+        group.cursor = cursor;
+        group.desiredColumn = desiredColumn;
+        beginBatch();
+        for (UndoHistory.Edit edit : group.edits) {
+            replay(edit.offset, edit.removed.length, edit.inserted);
+        }
+        commitBatch();
+        origin = group.redoOrigin;
+        cursor = group.redoCursor;
+        desiredColumn = group.redoDesiredColumn;
         lastAction = EditorAction.OTHER;
     }
 
     public void uncommit() {
-        past.pop();
+        history.uncommit();
     }
 
     public String deleteSelection() {
@@ -642,6 +701,7 @@ public final class Freditor extends CharZipper {
         deleteSelection();
         commit();
 
+        final int row = row();
         String synth = indenter.synthesizeOnEnterAfter(previousCharTyped);
         if (synth.isEmpty()) {
             insertAt(cursor++, '\n');
@@ -649,7 +709,8 @@ public final class Freditor extends CharZipper {
             insertAt(cursor++, '\n', synth);
         }
         adjustOrigin();
-        indent();
+        int newRows = 1 + (int) synth.chars().filter(c -> c == '\n').count();
+        indent(row, row + newRows + 1);
         lastAction = EditorAction.OTHER;
     }
 
@@ -706,8 +767,10 @@ public final class Freditor extends CharZipper {
             moveCursorToNextForm();
             if (cursor < length()) {
                 moveCursorAfterCurrentForm();
+                beginBatch();
                 String form = deleteRange(origin, cursor);
                 insertAt(closing, form);
+                commitBatch();
                 cursor = backup;
                 if (cursor == closing) {
                     cursor += form.length();
@@ -716,7 +779,7 @@ public final class Freditor extends CharZipper {
                 forgetDesiredColumn();
                 lastAction = EditorAction.OTHER;
             } else {
-                past.pop().restore();
+                revert(history.discard());
             }
         }, doNothing);
     }
@@ -724,7 +787,7 @@ public final class Freditor extends CharZipper {
     private void moveCursorToNextForm() {
         final int len = length();
         while (cursor < len) {
-            FlexerState state = flexerStates.get(cursor);
+            FlexerState state = stateAt(cursor);
             if (state.nesting < 0) {
                 origin = cursor + 1;
             } else if (state != Flexer.NEWLINE && state != Flexer.SPACE_HEAD) {
@@ -736,19 +799,39 @@ public final class Freditor extends CharZipper {
 
     private void moveCursorAfterCurrentForm() {
         final int len = length();
-        int nesting = 0;
-        do {
-            nesting += flexerStates.get(cursor).nesting;
-            cursor = endOfLexeme(cursor);
-        } while (nesting > 0 && cursor < len);
+        int end = endOfLexeme(cursor);
+        int nesting = states().nestingOf(cursor, end);
+        cursor = end;
+        if (nesting > 0 && cursor < len) {
+            int closing = states().closingAfter(cursor, len, nesting - 1);
+            cursor = closing >= 0 ? endOfLexeme(closing) : len;
+        }
     }
 
     public void replace(String regex, String replacement) {
-        String text = toString();
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(text);
-        String newText = matcher.replaceAll(replacement);
-        replace(newText);
+        Matcher matcher = Pattern.compile(regex).matcher(this);
+        Splices splices = new Splices();
+        StringBuffer sb = new StringBuffer();
+        int end = 0;
+        while (matcher.find()) {
+            // appendReplacement also copies the text since the previous match
+            sb.setLength(0);
+            matcher.appendReplacement(sb, replacement);
+            String replaced = sb.substring(matcher.start() - end);
+            end = matcher.end();
+            if (!replaced.equals(matcher.group())) {
+                splices.add(matcher.start(), end, replaced);
+            }
+        }
+        if (splices.isEmpty()) return;
+
+        commit();
+        int row = row();
+        int column = column();
+        replaceRanges(splices);
+        setRowAndColumn(row, column);
+        adjustOrigin();
+        lastAction = EditorAction.OTHER;
     }
 
     public void replace(String newText) {
@@ -771,14 +854,16 @@ public final class Freditor extends CharZipper {
         int column = column();
 
         final int oldLength = oldName.length();
-        final int lengthDelta = newName.length() - oldLength;
-        int offset = 0;
+        Splices splices = new Splices();
+        int end = 0;
         for (int position : positions) {
-            position += offset;
-            deleteRange(position, position + oldLength);
-            insertAt(position, newName);
-            offset += lengthDelta;
+            // overlapping occurrences cannot both be renamed
+            if (position >= end) {
+                end = position + oldLength;
+                splices.add(position, end, newName);
+            }
         }
+        replaceRanges(splices);
 
         setRowAndColumn(row, column);
         adjustOrigin();
@@ -797,7 +882,7 @@ public final class Freditor extends CharZipper {
     public void moveCursorToPreviousLexeme() {
         while (cursor > 0) {
             cursor = startOfLexeme(cursor - 1);
-            FlexerState state = flexerStates.get(cursor);
+            FlexerState state = stateAt(cursor);
             if (state == Flexer.NEWLINE || state == Flexer.SPACE_HEAD) continue;
 
             forgetDesiredColumn();
@@ -891,6 +976,7 @@ public final class Freditor extends CharZipper {
             int home = homePositionOfRow(above);
             int end = endPositionOfRow(above);
             int len = end - home + 1;
+            beginBatch();
             deleteRightOf(end);
             String line = deleteRange(home, end);
 
@@ -900,6 +986,7 @@ public final class Freditor extends CharZipper {
             int destination = endPositionOf(selectionEndForLineMovement());
             insertAt(destination, '\n');
             insertAt(destination + 1, line);
+            commitBatch();
         }
     }
 
@@ -919,12 +1006,14 @@ public final class Freditor extends CharZipper {
             int home = homePositionOfRow(below);
             int end = endPositionOfRow(below);
             int len = end - home + 1;
+            beginBatch();
             String line = deleteRange(home, end);
             deleteLeftOf(home);
 
             int destination = homePositionOf(selectionStart());
             insertAt(destination, line);
             insertAt(destination + len - 1, '\n');
+            commitBatch();
 
             cursor += len;
             origin += len;
@@ -933,82 +1022,102 @@ public final class Freditor extends CharZipper {
 
     // FORMATTING
 
+    // A single pass over the states, which stay valid for the output:
+    // whitespace inserted or removed between lexemes never changes the states of the lexemes.
+    // Opening braces keep at most one space before them, closing braces start a row,
+    // and every brace ends its row.
     public void isolateBraces() {
-        for (int i = 0; i < length(); ++i) {
-            FlexerState state = flexerStates.get(i);
-            if (state == Flexer.OPENING_BRACE) {
-                i = ensureSpaceBeforeBrace(i);
-                i = ensureNewlineAfterBrace(i);
-            } else if (state == Flexer.CLOSING_BRACE) {
-                i = ensureNewlineBeforeBrace(i);
-                i = ensureNewlineAfterBrace(i);
+        final int len = length();
+        Splices splices = new Splices();
+        // the output so far ends with a run of spaces, preceded by a character in state before
+        FlexerState before = Flexer.END;
+        int spacesStart = 0;
+        int spaces = 0;
+        for (int i = 0; i < len; ++i) {
+            FlexerState state = stateAt(i);
+            if (state == Flexer.OPENING_BRACE || state == Flexer.CLOSING_BRACE) {
+                if (state == Flexer.OPENING_BRACE) {
+                    if (spaces > 1) {
+                        splices.add(spacesStart + 1, i, "");
+                    } else if (spaces == 0 && before != Flexer.NEWLINE) {
+                        splices.add(i, i, " ");
+                    }
+                } else if (before != Flexer.NEWLINE) {
+                    int start = spaces > 0 ? spacesStart : i;
+                    splices.add(start, start, "\n");
+                }
+                i = isolateAfterBrace(i, splices);
+                before = Flexer.NEWLINE;
+                spaces = 0;
+            } else if (state == Flexer.SPACE_HEAD) {
+                spacesStart = i;
+                spaces = 1;
+            } else if (state == Flexer.SPACE_TAIL && spaces > 0) {
+                ++spaces;
+            } else {
+                before = state;
+                spaces = 0;
             }
         }
-    }
+        if (splices.isEmpty()) return;
 
-    private int ensureSpaceBeforeBrace(int i) {
-        while (stateAt(i - 1) == Flexer.SPACE_TAIL) {
-            deleteLeftOf(i--);
-        }
-        FlexerState state = stateAt(i - 1);
-        if (state != Flexer.SPACE_HEAD && state != Flexer.NEWLINE) {
-            insertAt(i++, ' ');
-        }
-        return i;
+        commit();
+        replaceRanges(splices);
+        cursor = splices.map(cursor);
+        origin = splices.map(origin);
+        forgetDesiredColumn();
+        lastAction = EditorAction.OTHER;
     }
 
-    private int ensureNewlineAfterBrace(int i) {
-        ++i;
-        while (stateAt(i) == Flexer.SPACE_HEAD) {
-            deleteRightOf(i);
+    // drops the spaces after the brace at i and makes sure a newline follows,
+    // returns the index of the last character dealt with
+    private int isolateAfterBrace(int i, Splices splices) {
+        final int len = length();
+        int k = i + 1;
+        if (k < len && stateAt(k) == Flexer.SPACE_HEAD) {
+            do ++k; while (k < len && stateAt(k) == Flexer.SPACE_TAIL);
         }
-        if (stateAt(i) != Flexer.NEWLINE) {
-            insertAt(i, '\n');
+        if (k < len && stateAt(k) == Flexer.NEWLINE) {
+            if (k > i + 1) {
+                splices.add(i + 1, k, "");
+            }
+            return k;
         }
-        return i;
+        splices.add(i + 1, k, "\n");
+        return k - 1;
     }
 
-    private int ensureNewlineBeforeBrace(int i) {
-        int j = skipSpacesBefore(i);
-        if (stateAt(j) != Flexer.NEWLINE) {
-            insertAt(j + 1, '\n');
-            ++i;
-        }
-        return i;
+    public void indent() {
+        indent(0, indenter.corrections(this));
     }
 
-    private int skipSpacesBefore(int j) {
-        do --j; while (stateAt(j) == Flexer.SPACE_TAIL);
-        if (stateAt(j) == Flexer.SPACE_HEAD) --j;
-        return j;
+    // only the rows an edit touched, the rest of the text keeps its indentation
+    private void indent(int firstRow, int endRow) {
+        indent(firstRow, indenter.corrections(this, firstRow, endRow));
     }
 
-    public void indent() {
+    private void indent(int firstRow, int[] corrections) {
         final int oldRow = row();
-        int[] corrections = indenter.corrections(this);
-        for (int row = corrections.length - 1; row >= 0; --row) {
-            correct(row, corrections[row]);
+        Splices splices = new Splices();
+        for (int k = 0; k < corrections.length; ++k) {
+            final int correction = corrections[k];
+            if (correction != 0) {
+                int home = homePositionOfRow(firstRow + k);
+                splices.add(home, home + atLeastZero(-correction), SpaceSequence.of(atLeastZero(correction)));
+            }
         }
+        replaceRanges(splices);
 
         int end = endPositionOfRow(oldRow);
         if (lineIsBlankBefore(end)) {
             cursor = end;
         } else {
-            cursor += Arrays.stream(corrections).limit(oldRow + 1).sum();
+            cursor += Arrays.stream(corrections).limit(atLeastZero(oldRow - firstRow + 1)).sum();
         }
         adjustOrigin();
         forgetDesiredColumn();
     }
 
-    private void correct(int row, int correction) {
-        int start = homePositionOfRow(row);
-        if (correction > 0) {
-            insertAt(start, SpaceSequence.of(correction));
-        } else if (correction < 0) {
-            deleteRange(start, start - correction);
-        }
-    }
-
     public int leadingSpaces(int index) {
         int start = index;
         final int len = length();
@@ -1021,16 +1130,23 @@ public final class Freditor extends CharZipper {
     // PERSISTENCE
 
     public void load() throws IOException {
+        ByteVector oldBefore = before();
+        ByteVector oldAfter = after();
         super.loadStrict(Files.readAllBytes(file));
-        bytesLoaded();
+        bytesLoaded(oldBefore, oldAfter);
     }
 
     public void load(String program) {
+        ByteVector oldBefore = before();
+        ByteVector oldAfter = after();
         super.loadLenient(program.getBytes(StandardCharsets.ISO_8859_1));
-        bytesLoaded();
+        bytesLoaded(oldBefore, oldAfter);
     }
 
-    private void bytesLoaded() {
+    private void bytesLoaded(ByteVector oldBefore, ByteVector oldAfter) {
+        if (history.isRecording()) {
+            recordLoad(oldBefore.concat(oldAfter).toArray());
+        }
         refreshBookkeeping();
         if (cursor >= length()) {
             cursor = length();
@@ -1039,6 +1155,25 @@ public final class Freditor extends CharZipper {
         forgetDesiredColumn();
     }
 
+    // records only the changed middle, so reloading a barely modified file stays cheap
+    private void recordLoad(byte[] oldText) {
+        byte[] newText = toByteArray();
+        int prefix = 0;
+        int limit = Math.min(oldText.length, newText.length);
+        while (prefix < limit && oldText[prefix] == newText[prefix]) {
+            ++prefix;
+        }
+        int oldEnd = oldText.length;
+        int newEnd = newText.length;
+        while (oldEnd > prefix && newEnd > prefix && oldText[oldEnd - 1] == newText[newEnd - 1]) {
+            --oldEnd;
+            --newEnd;
+        }
+        if (oldEnd > prefix || newEnd > prefix) {
+            history.record(prefix, Arrays.copyOfRange(oldText, prefix, oldEnd), Arrays.copyOfRange(newText, prefix, newEnd));
+        }
+    }
+
     public void save() {
         save(file, toByteArray());
     }
@@ -1,5 +1,7 @@
 package freditor;
 
+import java.util.Arrays;
+
 public class Indenter {
     public static final Indenter instance = new Indenter();
 
@@ -10,4 +12,15 @@ public class Indenter {
     public int[] corrections(Freditor freditor) {
         return new int[0];
     }
+
+    /**
+     * Corrections of the rows [firstRow, endRow) only. Indenters that cannot start
+     * in the middle of the text compute all corrections and keep the requested ones.
+     */
+    public int[] corrections(Freditor freditor, int firstRow, int endRow) {
+        int[] corrections = corrections(freditor);
+        if (firstRow >= corrections.length) return new int[0];
+
+        return Arrays.copyOfRange(corrections, firstRow, Math.min(endRow, corrections.length));
+    }
 }
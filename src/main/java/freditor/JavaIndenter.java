@@ -13,18 +13,36 @@ public class JavaIndenter extends Indenter {
 
     @Override
     public int[] corrections(Freditor freditor) {
-        final int rows = freditor.rows();
-        int[] corrections = new int[rows];
-        int indentation = 0;
-        for (int row = 0; row < rows; ++row) {
+        return corrections(freditor, 0, freditor.rows());
+    }
+
+    @Override
+    public int[] corrections(Freditor freditor, int firstRow, int endRow) {
+        endRow = Math.min(endRow, freditor.rows());
+        int[] corrections = new int[Math.max(endRow - firstRow, 0)];
+        int indentation = indentationOfRow(freditor, firstRow);
+        for (int row = firstRow; row < endRow; ++row) {
             int home = freditor.homePositionOfRow(row);
             int end = freditor.endPositionOfRow(row);
-            corrections[row] = atLeastZero(indentation + leadingClosers(freditor, home, end)) - freditor.leadingSpaces(home);
+            corrections[row - firstRow] = atLeastZero(indentation + leadingClosers(freditor, home, end)) - freditor.leadingSpaces(home);
             indentation = atLeastZero(indentation + openersAndClosers(freditor, home, end));
         }
         return corrections;
     }
 
+    // Without excess closers above the row, the indentation is just the nesting so far.
+    // Otherwise the clamping at zero has to be replayed row by row from the top.
+    private int indentationOfRow(Freditor freditor, int row) {
+        final int home = freditor.homePositionOfRow(row);
+        if (freditor.findUnmatchedCloser(0, home) < 0) return freditor.nestingOf(0, home) * SPACES;
+
+        int indentation = 0;
+        for (int r = 0; r < row; ++r) {
+            indentation = atLeastZero(indentation + openersAndClosers(freditor, freditor.homePositionOfRow(r), freditor.endPositionOfRow(r)));
+        }
+        return indentation;
+    }
+
     private int leadingClosers(Freditor freditor, int home, int end) {
         int difference = 0;
         for (int i = home; i < end; ++i) {
@@ -38,10 +56,6 @@ public class JavaIndenter extends Indenter {
     }
 
     private int openersAndClosers(Freditor freditor, int home, int end) {
-        int difference = 0;
-        for (int i = home; i < end; ++i) {
-            difference += freditor.stateAt(i).nesting * SPACES;
-        }
-        return difference;
+        return freditor.nestingOf(home, end) * SPACES;
     }
 }
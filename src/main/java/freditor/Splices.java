@@ -0,0 +1,64 @@
+package freditor;
+
+import java.util.Arrays;
+
+/**
+ * Sorted, disjoint replacements of text ranges, collected for one pass over the text.
+ */
+final class Splices {
+    int[] starts = new int[16];
+    int[] ends = new int[16];
+    CharSequence[] replacements = new CharSequence[16];
+    int count;
+    // the replacement of the last range, once a neighbor has been merged into it
+    private StringBuilder merged;
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Replaces [start, end) with the replacement. A range that begins where the previous one ends
+     * is merged into it.
+     */
+    void add(int start, int end, CharSequence replacement) {
+        if (count > 0) {
+            final int last = count - 1;
+            if (start < ends[last]) throw new IllegalArgumentException(start + " < " + ends[last]);
+
+            if (start == ends[last]) {
+                ends[last] = end;
+                if (merged == null) {
+                    merged = new StringBuilder(replacements[last]);
+                    replacements[last] = merged;
+                }
+                merged.append(replacement);
+                return;
+            }
+        }
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+            replacements = Arrays.copyOf(replacements, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        replacements[count] = replacement;
+        ++count;
+        merged = null;
+    }
+
+    /**
+     * Where a position ends up after the replacements. Positions inside a replaced range
+     * end up at its start.
+     */
+    int map(int position) {
+        int delta = 0;
+        for (int k = 0; k < count && starts[k] < position; ++k) {
+            if (position < ends[k]) return starts[k] + delta;
+
+            delta += replacements[k].length() - (ends[k] - starts[k]);
+        }
+        return position + delta;
+    }
+}
@@ -0,0 +1,194 @@
+package freditor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+final class UndoHistory {
+    static final int DEFAULT_BUDGET = 8 << 20;
+
+    // rough heap cost of the objects around the recorded bytes
+    static final int EDIT_OVERHEAD = 48;
+    private static final int GROUP_OVERHEAD = 64;
+
+    private static final byte[] NOTHING = {};
+
+    static final class Edit {
+        int offset;
+        byte[] removed;
+        byte[] inserted;
+
+        private Edit(int offset, byte[] removed, byte[] inserted) {
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+    }
+
+    static final class Group {
+        final ArrayList<Edit> edits = new ArrayList<>();
+
+        // positions before the edits, restored by undo
+        int origin;
+        int cursor;
+        int desiredColumn;
+
+        // positions after the edits, restored by redo
+        int redoOrigin;
+        int redoCursor;
+        int redoDesiredColumn;
+
+        private int bytes = GROUP_OVERHEAD;
+
+        private Group(int origin, int cursor, int desiredColumn) {
+            this.origin = origin;
+            this.cursor = cursor;
+            this.desiredColumn = desiredColumn;
+        }
+    }
+
+    private final ArrayDeque<Group> past = new ArrayDeque<>();
+    private final ArrayDeque<Group> future = new ArrayDeque<>();
+
+    private int budget = DEFAULT_BUDGET;
+    private long bytes;
+
+    int budget() {
+        return budget;
+    }
+
+    void setBudget(int budget) {
+        if (budget < 0) throw new IllegalArgumentException("negative budget " + budget);
+
+        this.budget = budget;
+        evict();
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    // edits matter as long as there is something to undo or redo
+    boolean isRecording() {
+        return !past.isEmpty() || !future.isEmpty();
+    }
+
+    int undoable() {
+        return past.size();
+    }
+
+    int redoable() {
+        return future.size();
+    }
+
+    void commit(int origin, int cursor, int desiredColumn) {
+        clearFuture();
+        Group group = new Group(origin, cursor, desiredColumn);
+        past.push(group);
+        bytes += group.bytes;
+        evict();
+    }
+
+    void record(int offset, byte[] removed, byte[] inserted) {
+        clearFuture();
+        Group group = past.peek();
+        if (group == null) return;
+
+        int size = group.edits.size();
+        if (size > 0 && coalesce(group.edits.get(size - 1), offset, removed, inserted)) {
+            group.bytes += removed.length + inserted.length;
+            bytes += removed.length + inserted.length;
+        } else {
+            group.edits.add(new Edit(offset, removed, inserted));
+            int cost = EDIT_OVERHEAD + removed.length + inserted.length;
+            group.bytes += cost;
+            bytes += cost;
+        }
+        evict();
+    }
+
+    void recordInsertion(int offset, byte[] inserted) {
+        record(offset, NOTHING, inserted);
+    }
+
+    void recordRemoval(int offset, byte[] removed) {
+        record(offset, removed, NOTHING);
+    }
+
+    private static boolean coalesce(Edit last, int offset, byte[] removed, byte[] inserted) {
+        if (removed.length == 0) {
+            // typing forward
+            if (offset != last.offset + last.inserted.length) return false;
+
+            last.inserted = joined(last.inserted, inserted);
+            return true;
+        }
+        if (inserted.length != 0 || last.inserted.length != 0) return false;
+
+        if (offset == last.offset) {
+            // deleting forward
+            last.removed = joined(last.removed, removed);
+            return true;
+        }
+        if (offset + removed.length == last.offset) {
+            // deleting backward
+            last.removed = joined(removed, last.removed);
+            last.offset = offset;
+            return true;
+        }
+        return false;
+    }
+
+    private static byte[] joined(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    Group undo() {
+        Group group = past.poll();
+        if (group != null) {
+            future.push(group);
+        }
+        return group;
+    }
+
+    Group redo() {
+        Group group = future.poll();
+        if (group != null) {
+            past.push(group);
+        }
+        return group;
+    }
+
+    Group discard() {
+        Group group = past.pop();
+        bytes -= group.bytes;
+        return group;
+    }
+
+    void uncommit() {
+        Group group = discard();
+        Group previous = past.peek();
+        if (previous != null) {
+            previous.edits.addAll(group.edits);
+            previous.bytes += group.bytes - GROUP_OVERHEAD;
+            bytes += group.bytes - GROUP_OVERHEAD;
+        }
+    }
+
+    private void clearFuture() {
+        for (Group group : future) {
+            bytes -= group.bytes;
+        }
+        future.clear();
+    }
+
+    // the most recent group survives even if it alone exceeds the budget
+    private void evict() {
+        while (bytes > budget && past.size() + future.size() > 1) {
+            Group oldest = past.size() > 1 ? past.removeLast() : future.removeLast();
+            bytes -= oldest.bytes;
+        }
+    }
+}
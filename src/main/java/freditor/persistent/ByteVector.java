@@ -1,23 +1,39 @@
 package freditor.persistent;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 public final class ByteVector {
+    // The root is null, a leaf byte[32] or a node Object[33].
+    // A node keeps up to 32 children, followed by an int[65] with the
+    // cumulative sizes of its children, their number at index 32 and
+    // the cumulative newline counts of its children from index 33.
+    // Leaves know nothing about their own size; only their parents do.
     private final Object root;
+    private final int shift;
+    private final int treeSize;
     private final byte[] tail;
     private final int size;
 
-    private ByteVector(Object root, byte[] tail, int size) {
-        assert size <= 32 || root != null;
+    private ByteVector(Object root, int shift, int treeSize, byte[] tail, int size) {
+        assert size == 0 || treeSize < size && size <= treeSize + 32;
+        assert (root == null) == (treeSize == 0);
         assert tail.length == 32;
 
         this.root = root;
+        this.shift = shift;
+        this.treeSize = treeSize;
         this.tail = tail;
         this.size = size;
     }
 
-    public static final ByteVector EMPTY = new ByteVector(null, "                                ".getBytes(), 0);
+    public static final ByteVector EMPTY = new ByteVector(null, 0, 0, "                                ".getBytes(), 0);
 
     public static ByteVector of(byte... bytes) {
         return of(bytes, bytes.length);
@@ -25,31 +41,143 @@ public final class ByteVector {
 
     public static ByteVector of(byte[] bytes, int size) {
         if (size <= 32) {
-            return new ByteVector(null, Arrays.copyOf(bytes, 32), size);
+            return new ByteVector(null, 0, 0, Arrays.copyOf(bytes, 32), size);
         } else {
             // split input into chunks of 32, plus tail
-            int n = (size - 1) >>> 5;
+            final int treeSize = (size - 1) & ~31;
+            int n = treeSize >>> 5;
             Object[] temp = new Object[n];
+            int[] sizes = new int[n];
+            int[] newlines = new int[n];
             int index = 0;
             for (int i = 0; i < n; ++i) {
                 temp[i] = Arrays.copyOfRange(bytes, index, index += 32);
+                sizes[i] = 32;
+                newlines[i] = newlinesIn((byte[]) temp[i], 0, 32);
             }
             byte[] tail = Arrays.copyOfRange(bytes, index, index + 32);
 
             // grow tree towards root
+            int shift = 0;
             while (n > 1) {
-                int m = (n - 1) >>> 5;
-                index = 0;
+                int m = ((n - 1) >>> 5) + 1;
                 for (int i = 0; i < m; ++i) {
-                    temp[i] = Arrays.copyOfRange(temp, index, index += 32);
+                    Object[] node = node(temp, sizes, newlines, i << 5, Math.min((i + 1) << 5, n));
+                    temp[i] = node;
+                    sizes[i] = sizeOf(node);
+                    newlines[i] = newlinesOf(node, sizes[i]);
                 }
-                temp[m] = Arrays.copyOfRange(temp, index, n);
-                n = m + 1;
+                n = m;
+                shift += 5;
             }
-            return new ByteVector(temp[0], tail, size);
+            return new ByteVector(temp[0], shift, treeSize, tail, size);
         }
     }
 
+    // NODES
+
+    private static int[] meta(Object node) {
+        return (int[]) ((Object[]) node)[32];
+    }
+
+    private static int countOf(Object node) {
+        return meta(node)[32];
+    }
+
+    private static int sizeOf(Object node) {
+        int[] meta = meta(node);
+        return meta[meta[32] - 1];
+    }
+
+    private static int sizeOfChild(int[] meta, int index) {
+        return index == 0 ? meta[0] : meta[index] - meta[index - 1];
+    }
+
+    private static final int NEWLINES = 33;
+
+    private static int newlinesOfChild(int[] meta, int index) {
+        return index == 0 ? meta[NEWLINES] : meta[NEWLINES + index] - meta[NEWLINES + index - 1];
+    }
+
+    private static int newlinesOf(Object node, int size) {
+        if (node instanceof byte[]) return newlinesIn((byte[]) node, 0, size);
+
+        int[] meta = meta(node);
+        return meta[NEWLINES + meta[32] - 1];
+    }
+
+    private static int newlinesIn(byte[] leaf, int from, int to) {
+        return countIn(leaf, from, to, (byte) '\n');
+    }
+
+    private static int childContaining(int[] meta, int index, int shift) {
+        // a child holds at most 1 << shift elements, so relaxed nodes only ever need a few extra steps
+        int i = index >>> shift;
+        while (meta[i] <= index) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static Object[] emptyNode() {
+        Object[] node = new Object[33];
+        node[32] = new int[65];
+        return node;
+    }
+
+    private static void append(Object[] node, Object child, int size, int newlines) {
+        int[] meta = meta(node);
+        final int count = meta[32];
+        node[count] = child;
+        meta[count] = (count == 0 ? 0 : meta[count - 1]) + size;
+        meta[NEWLINES + count] = (count == 0 ? 0 : meta[NEWLINES + count - 1]) + newlines;
+        meta[32] = count + 1;
+    }
+
+    private static Object[] node(Object[] children, int[] sizes, int[] newlines, int from, int to) {
+        Object[] node = emptyNode();
+        for (int i = from; i < to; ++i) {
+            append(node, children[i], sizes[i], newlines[i]);
+        }
+        return node;
+    }
+
+    private static Object[] node1(Object child, int size) {
+        Object[] node = emptyNode();
+        append(node, child, size, newlinesOf(child, size));
+        return node;
+    }
+
+    private static Object[] node2(Object left, int leftSize, Object right, int rightSize) {
+        Object[] node = node1(left, leftSize);
+        append(node, right, rightSize, newlinesOf(right, rightSize));
+        return node;
+    }
+
+    private static Object path(Object node, int size, int shift) {
+        for (int s = 0; s < shift; s += 5) {
+            node = node1(node, size);
+        }
+        return node;
+    }
+
+    private static int shiftOf(Object root) {
+        int shift = 0;
+        for (Object node = root; node instanceof Object[]; node = ((Object[]) node)[0]) {
+            shift += 5;
+        }
+        return shift;
+    }
+
+    private static ByteVector normalized(Object root, int treeSize, byte[] tail, int size) {
+        while (root instanceof Object[] && countOf(root) == 1) {
+            root = ((Object[]) root)[0];
+        }
+        return new ByteVector(root, shiftOf(root), treeSize, tail, size);
+    }
+
+    // ARRAYS
+
     public byte[] toArray() {
         byte[] bytes = new byte[size];
         copyIntoArray(bytes, 0);
@@ -57,23 +185,184 @@ public final class ByteVector {
     }
 
     public void copyIntoArray(byte[] bytes, int offset) {
-        int index = 0;
-        if (size > 32) {
-            index = copyIntoArray(root, 0, bytes, offset);
+        if (root != null) {
+            copyIntoArray(root, shift, treeSize, bytes, offset);
         }
-        System.arraycopy(tail, 0, bytes, offset + index, size - index);
+        System.arraycopy(tail, 0, bytes, offset + treeSize, size - treeSize);
     }
 
-    private int copyIntoArray(Object root, int index, byte[] bytes, int offset) {
-        if (root instanceof Object[]) {
-            for (Object r : (Object[]) root) {
-                if (index + 32 >= size) break;
-                index = copyIntoArray(r, index, bytes, offset);
+    private static void copyIntoArray(Object node, int shift, int size, byte[] bytes, int offset) {
+        if (shift == 0) {
+            System.arraycopy(node, 0, bytes, offset, size);
+        } else {
+            Object[] children = (Object[]) node;
+            int[] meta = meta(node);
+            final int count = meta[32];
+            for (int i = 0; i < count; ++i) {
+                int start = i == 0 ? 0 : meta[i - 1];
+                copyIntoArray(children[i], shift - 5, meta[i] - start, bytes, offset + start);
             }
-            return index;
+        }
+    }
+
+    public void copyIntoArray(int start, int end, byte[] bytes, int offset) {
+        forEachChunk(start, end, (chunk, from, to, origin) -> {
+            System.arraycopy(chunk, from, bytes, offset + origin + from - start, to - from);
+        });
+    }
+
+    // CHUNKS
+
+    @FunctionalInterface
+    public interface ChunkVisitor {
+        /**
+         * Visits chunk[from..to), where chunk[i] is the byte at index origin + i.
+         */
+        void visit(byte[] chunk, int from, int to, int origin);
+    }
+
+    public void forEachChunk(ChunkVisitor visitor) {
+        forEachChunk(0, size, visitor);
+    }
+
+    public void forEachChunk(int start, int end, ChunkVisitor visitor) {
+        if (start < treeSize && start < end) {
+            forEachChunk(root, shift, start, Math.min(end, treeSize), 0, visitor);
+        }
+        if (end > treeSize && start < end) {
+            visitor.visit(tail, Math.max(start - treeSize, 0), end - treeSize, treeSize);
+        }
+    }
+
+    private static void forEachChunk(Object node, int shift, int from, int to, int origin, ChunkVisitor visitor) {
+        if (shift == 0) {
+            visitor.visit((byte[]) node, from, to, origin);
+        } else {
+            Object[] children = (Object[]) node;
+            int[] meta = meta(node);
+            for (int i = childContaining(meta, from, shift), start; (start = i == 0 ? 0 : meta[i - 1]) < to; ++i) {
+                forEachChunk(children[i], shift - 5, Math.max(from - start, 0), Math.min(to, meta[i]) - start, origin + start, visitor);
+            }
+        }
+    }
+
+    public void forEachChunkReversed(ChunkVisitor visitor) {
+        forEachChunkReversed(0, size, visitor);
+    }
+
+    public void forEachChunkReversed(int start, int end, ChunkVisitor visitor) {
+        if (end > treeSize && start < end) {
+            visitor.visit(tail, Math.max(start - treeSize, 0), end - treeSize, treeSize);
+        }
+        if (start < treeSize && start < end) {
+            forEachChunkReversed(root, shift, start, Math.min(end, treeSize), 0, visitor);
+        }
+    }
+
+    private static void forEachChunkReversed(Object node, int shift, int from, int to, int origin, ChunkVisitor visitor) {
+        if (shift == 0) {
+            visitor.visit((byte[]) node, from, to, origin);
         } else {
-            System.arraycopy(root, 0, bytes, offset + index, 32);
-            return index + 32;
+            Object[] children = (Object[]) node;
+            int[] meta = meta(node);
+            for (int i = childContaining(meta, to - 1, shift), start; i >= 0 && meta[i] > from; --i) {
+                start = i == 0 ? 0 : meta[i - 1];
+                forEachChunkReversed(children[i], shift - 5, Math.max(from - start, 0), Math.min(to, meta[i]) - start, origin + start, visitor);
+            }
+        }
+    }
+
+    // STREAMS
+
+    public IntStream stream() {
+        return StreamSupport.intStream(spliterator(), false);
+    }
+
+    /**
+     * Reports unsigned bytes and only ever splits at leaf boundaries.
+     */
+    public Spliterator.OfInt spliterator() {
+        return new LeafSpliterator(0, size);
+    }
+
+    private final class LeafSpliterator implements Spliterator.OfInt {
+        private int index;
+        private final int end;
+
+        private byte[] leaf;
+        private int leafStart;
+        private int leafEnd;
+
+        LeafSpliterator(int index, int end) {
+            this.index = index;
+            this.end = end;
+        }
+
+        private void locateLeaf(int index) {
+            if (index >= treeSize) {
+                leaf = tail;
+                leafStart = treeSize;
+                leafEnd = size;
+                return;
+            }
+            Object node = root;
+            int start = 0;
+            int end = treeSize;
+            for (int shift = ByteVector.this.shift; shift > 0; shift -= 5) {
+                int[] meta = meta(node);
+                int i = childContaining(meta, index - start, shift);
+                end = start + meta[i];
+                if (i > 0) {
+                    start += meta[i - 1];
+                }
+                node = ((Object[]) node)[i];
+            }
+            leaf = (byte[]) node;
+            leafStart = start;
+            leafEnd = end;
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action) {
+            if (index >= end) return false;
+
+            if (leaf == null || index >= leafEnd) {
+                locateLeaf(index);
+            }
+            action.accept(leaf[index - leafStart] & 255);
+            ++index;
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action) {
+            forEachChunk(index, end, (chunk, from, to, origin) -> {
+                for (int i = from; i < to; ++i) {
+                    action.accept(chunk[i] & 255);
+                }
+            });
+            index = end;
+        }
+
+        @Override
+        public Spliterator.OfInt trySplit() {
+            if (end - index <= 64) return null;
+
+            locateLeaf((index + end) >>> 1);
+            int split = leafStart;
+            LeafSpliterator prefix = new LeafSpliterator(index, split);
+            index = split;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
         }
     }
 
@@ -88,53 +377,246 @@ public final class ByteVector {
     public byte top() {
         if (isEmpty()) throw new IllegalStateException("top on empty vector");
 
-        return tail[(size - 1) & 31];
+        return tail[size - treeSize - 1];
     }
 
     public byte byteAt(int index) {
-        return tailOrLeafContaining(index)[index & 31];
+        if (index >= treeSize) {
+            return tail[index - treeSize];
+        }
+        Object node = root;
+        for (int shift = this.shift; shift > 0; shift -= 5) {
+            int[] meta = meta(node);
+            int i = childContaining(meta, index, shift);
+            if (i > 0) {
+                index -= meta[i - 1];
+            }
+            node = ((Object[]) node)[i];
+        }
+        return ((byte[]) node)[index];
     }
 
-    private byte[] tailOrLeafContaining(int index) {
-        if ((index >>> 5) >= (size - 1) >>> 5) {
-            return tail;
-        } else {
-            return leafContaining(index);
+    // NEWLINES
+
+    public int newlines() {
+        return newlinesOfTree() + newlinesIn(tail, 0, size - treeSize);
+    }
+
+    private int newlinesOfTree() {
+        return root == null ? 0 : newlinesOf(root, treeSize);
+    }
+
+    /**
+     * Counts the newlines at indices below the given index.
+     */
+    public int newlinesBefore(int index) {
+        if (index <= 0) {
+            return 0;
+        } else if (index >= treeSize) {
+            return newlinesOfTree() + newlinesIn(tail, 0, Math.min(index, size) - treeSize);
+        }
+        Object node = root;
+        int newlines = 0;
+        for (int shift = this.shift; shift > 0; shift -= 5) {
+            int[] meta = meta(node);
+            int i = childContaining(meta, index, shift);
+            if (i > 0) {
+                index -= meta[i - 1];
+                newlines += meta[NEWLINES + i - 1];
+            }
+            node = ((Object[]) node)[i];
         }
+        return newlines + newlinesIn((byte[]) node, 0, index);
     }
 
-    private byte[] leafContaining(int index) {
-        Object root = this.root;
-        for (int shift = shift(size); shift > 0; shift -= 5) {
-            root = ((Object[]) root)[(index >>> shift) & 31];
+    /**
+     * Finds the index of the k-th newline, counting from 0, or returns -1.
+     */
+    public int indexOfNewline(int k) {
+        final int treeNewlines = newlinesOfTree();
+        if (k >= treeNewlines) {
+            int i = indexOfNewline(tail, size - treeSize, k - treeNewlines);
+            return i < 0 ? -1 : treeSize + i;
         }
-        return (byte[]) root;
+        Object node = root;
+        int index = 0;
+        for (int shift = this.shift; shift > 0; shift -= 5) {
+            int[] meta = meta(node);
+            int i = 0;
+            while (meta[NEWLINES + i] <= k) {
+                ++i;
+            }
+            if (i > 0) {
+                k -= meta[NEWLINES + i - 1];
+                index += meta[i - 1];
+            }
+            node = ((Object[]) node)[i];
+        }
+        return index + indexOfNewline((byte[]) node, 32, k);
+    }
+
+    private static int indexOfNewline(byte[] leaf, int size, int k) {
+        int i = -1;
+        do {
+            i = indexIn(leaf, i + 1, size, (byte) '\n');
+        } while (i >= 0 && k-- > 0);
+        return i;
     }
 
-    private static int shift(int size) {
-        int maxTreeIndex = size - 33;
-        int leadingZeros = Integer.numberOfLeadingZeros(maxTreeIndex);
-        return "\0\36\31\31\31\31\31\24\24\24\24\24\17\17\17\17\17\12\12\12\12\12\5\5\5\5\5\0\0\0\0\0\0".charAt(leadingZeros);
+    // SEARCH
+
+    public int indexOf(byte x) {
+        return indexOf(x, 0);
     }
 
+    public int indexOf(byte x, int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        if (from >= size) return -1;
+
+        if (x == '\n') {
+            // rank and select instead of scanning
+            return indexOfNewline(newlinesBefore(from));
+        }
+        if (from < treeSize) {
+            int index = indexOf(root, shift, treeSize, from, x);
+            if (index >= 0) return index;
+        }
+        int index = indexIn(tail, Math.max(from - treeSize, 0), size - treeSize, x);
+        return index < 0 ? -1 : treeSize + index;
+    }
+
+    private static int indexOf(Object node, int shift, int size, int from, byte x) {
+        if (shift == 0) return indexIn((byte[]) node, from, size, x);
+
+        Object[] children = (Object[]) node;
+        int[] meta = meta(node);
+        final int count = meta[32];
+        for (int i = childContaining(meta, from, shift); i < count; ++i) {
+            int start = i == 0 ? 0 : meta[i - 1];
+            int index = indexOf(children[i], shift - 5, meta[i] - start, Math.max(from - start, 0), x);
+            if (index >= 0) return start + index;
+        }
+        return -1;
+    }
+
+    public int lastIndexOf(byte x) {
+        return lastIndexOf(x, size - 1);
+    }
+
+    public int lastIndexOf(byte x, int from) {
+        if (from >= size) {
+            from = size - 1;
+        }
+        if (from < 0) return -1;
+
+        if (x == '\n') {
+            int k = newlinesBefore(from + 1);
+            return k == 0 ? -1 : indexOfNewline(k - 1);
+        }
+        if (from >= treeSize) {
+            int index = lastIndexIn(tail, 0, from + 1 - treeSize, x);
+            if (index >= 0) return treeSize + index;
+        }
+        if (treeSize == 0) return -1;
+
+        return lastIndexOf(root, shift, Math.min(from + 1, treeSize), x);
+    }
+
+    private static int lastIndexOf(Object node, int shift, int to, byte x) {
+        if (shift == 0) return lastIndexIn((byte[]) node, 0, to, x);
+
+        Object[] children = (Object[]) node;
+        int[] meta = meta(node);
+        for (int i = childContaining(meta, to - 1, shift); i >= 0; --i) {
+            int start = i == 0 ? 0 : meta[i - 1];
+            int index = lastIndexOf(children[i], shift - 5, Math.min(to, meta[i]) - start, x);
+            if (index >= 0) return start + index;
+        }
+        return -1;
+    }
+
+    public int countOf(byte x) {
+        if (x == '\n') return newlines();
+
+        int[] count = {0};
+        forEachChunk((chunk, from, to, origin) -> count[0] += countIn(chunk, from, to, x));
+        return count[0];
+    }
+
+    // SWAR: scan 8 bytes at a time, see https://graphics.stanford.edu/~seander/bithacks.html#ZeroInWord
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOWS = 0x7f7f7f7f7f7f7f7fL;
+
+    private static ByteBuffer words(byte[] leaf) {
+        return ByteBuffer.wrap(leaf).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // sets the high bit of exactly those bytes which are zero
+    private static long zeroBytes(long word) {
+        long t = (word & LOWS) + LOWS;
+        return ~(t | word | LOWS);
+    }
+
+    private static int indexIn(byte[] leaf, int from, int to, byte x) {
+        ByteBuffer words = words(leaf);
+        final long pattern = (x & 255) * ONES;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long matches = zeroBytes(words.getLong(i) ^ pattern);
+            if (matches != 0) return i + (Long.numberOfTrailingZeros(matches) >>> 3);
+        }
+        for (; i < to; ++i) {
+            if (leaf[i] == x) return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexIn(byte[] leaf, int from, int to, byte x) {
+        ByteBuffer words = words(leaf);
+        final long pattern = (x & 255) * ONES;
+        int i = to;
+        for (; i - 8 >= from; i -= 8) {
+            long matches = zeroBytes(words.getLong(i - 8) ^ pattern);
+            if (matches != 0) return i - 1 - (Long.numberOfLeadingZeros(matches) >>> 3);
+        }
+        for (--i; i >= from; --i) {
+            if (leaf[i] == x) return i;
+        }
+        return -1;
+    }
+
+    private static int countIn(byte[] leaf, int from, int to, byte x) {
+        ByteBuffer words = words(leaf);
+        final long pattern = (x & 255) * ONES;
+        int count = 0;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            count += Long.bitCount(zeroBytes(words.getLong(i) ^ pattern));
+        }
+        for (; i < to; ++i) {
+            if (leaf[i] == x) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    // PUSH AND POP
+
     public ByteVector push(byte x) {
-        final int tailIndex = tailIndex();
-        if (tailIndex > 0 || isEmpty()) {
+        final int tailSize = size - treeSize;
+        if (tailSize < 32) {
             // same leaf count
-            return new ByteVector(root, tailWith(tailIndex, x), size + 1);
-        } else if (!isPowerOf32(size - 32)) {
-            // same height
-            return new ByteVector(integrate(root, shift(size + 1)), tailOf(x), size + 1);
+            return new ByteVector(root, shift, treeSize, tailWith(tailSize, x), size + 1);
         } else {
-            // increased height
-            return new ByteVector(integrate(new Object[]{root}, shift(size + 1)), tailOf(x), size + 1);
+            Object root = withLeaf(this.root, shift, treeSize, tail, 32);
+            return new ByteVector(root, shiftOf(root), treeSize + 32, tailOf(x), size + 1);
         }
     }
 
-    private int tailIndex() {
-        return size & 31;
-    }
-
     private byte[] tailWith(int index, byte value) {
         byte[] tail = this.tail;
         if (tail[index] != value) {
@@ -152,95 +634,539 @@ public final class ByteVector {
         return tail;
     }
 
-    private Object integrate(Object root, int shift) {
-        if (shift == 0) {
-            return tail;
+    private static Object withLeaf(Object root, int shift, int treeSize, byte[] leaf, int leafSize) {
+        if (root == null) {
+            return leaf;
+        } else if (shift == 0) {
+            return node2(root, treeSize, leaf, leafSize);
         } else {
-            int index = ((size - 32) >>> shift) & 31;
-            Object[] newRoot = copy(root, index + 1);
-            newRoot[index] = integrate(newRoot[index], shift - 5);
-            return newRoot;
+            Object[] appended = withLeaf((Object[]) root, shift, leaf, leafSize, newlinesIn(leaf, 0, leafSize));
+            if (appended != null) {
+                // same height
+                return appended;
+            } else {
+                // increased height
+                return node2(root, treeSize, path(leaf, leafSize, shift), leafSize);
+            }
         }
     }
 
-    private static Object[] copy(Object root, int size) {
-        if (root == null) {
-            return new Object[1];
-        } else {
-            return Arrays.copyOf((Object[]) root, size);
+    private static Object[] withLeaf(Object[] node, int shift, byte[] leaf, int leafSize, int leafNewlines) {
+        final int count = countOf(node);
+        if (shift > 5) {
+            Object child = withLeaf((Object[]) node[count - 1], shift - 5, leaf, leafSize, leafNewlines);
+            if (child != null) {
+                Object[] result = copy(node);
+                int[] meta = meta(result);
+                result[count - 1] = child;
+                meta[count - 1] += leafSize;
+                meta[NEWLINES + count - 1] += leafNewlines;
+                return result;
+            }
         }
+        if (count == 32) return null;
+
+        Object[] result = copy(node);
+        append(result, path(leaf, leafSize, shift - 5), leafSize, leafNewlines);
+        return result;
+    }
+
+    private static Object[] copy(Object node) {
+        Object[] result = ((Object[]) node).clone();
+        result[32] = meta(node).clone();
+        return result;
+    }
+
+    public ByteVector pushAll(byte[] src, int offset, int length) {
+        if (length == 0) return this;
+
+        return asTransient().pushAll(src, offset, length).persistent();
+    }
+
+    public ByteVector pushAll(ByteVector that) {
+        if (this.isEmpty()) return that;
+        if (that.size > 1024) {
+            // share structure instead of copying
+            return concat(that);
+        }
+        if (that.isEmpty()) return this;
+
+        return asTransient().pushAll(that).persistent();
     }
 
     public ByteVector pop() {
         if (isEmpty()) throw new IllegalStateException("pop on empty vector");
 
-        if (tailIndex() != 1) {
+        if (size - treeSize > 1 || treeSize == 0) {
             // same leaf count
-            return new ByteVector(root, tail, size - 1);
-        } else if (!isPowerOf32(size - 33)) {
-            // same height
-            return new ByteVector(root, tailOrLeafContaining(size - 2), size - 1);
+            return new ByteVector(root, shift, treeSize, tail, size - 1);
         } else {
-            // reduced height
-            return new ByteVector(((Object[]) root)[0], tailOrLeafContaining(size - 2), size - 1);
+            return take(size - 1);
         }
     }
 
-    private static boolean isPowerOf32(int x) {
-        return (x & (x - 1)) == 0 && (0b01000010000100001000010000100001 << Integer.numberOfLeadingZeros(x)) < 0;
-        //     zero or power of 2      32^6 32^5 32^4 32^3 32^2 32^1 32^0
-    }
+    // SPLIT AND CONCAT
 
     public ByteVector take(int n) {
         if (n <= 0) {
             return EMPTY;
-        } else if (n == size) {
+        } else if (n >= size) {
             return this;
+        } else if (n > treeSize) {
+            return new ByteVector(root, shift, treeSize, tail, n);
         } else {
-            Object root = this.root;
-            for (int shift = shift(size), targetShift = shift(n); shift > targetShift; shift -= 5) {
-                root = ((Object[]) root)[0];
+            // the leaf containing n - 1 becomes the new tail
+            Object node = root;
+            int index = n - 1;
+            for (int shift = this.shift; shift > 0; shift -= 5) {
+                int[] meta = meta(node);
+                int i = childContaining(meta, index, shift);
+                if (i > 0) {
+                    index -= meta[i - 1];
+                }
+                node = ((Object[]) node)[i];
+            }
+            final int leafStart = n - 1 - index;
+            if (leafStart == 0) {
+                return new ByteVector(null, 0, 0, (byte[]) node, n);
             }
-            return new ByteVector(root, tailOrLeafContaining(n - 1), n);
+            return normalized(take(root, shift, leafStart), leafStart, (byte[]) node, n);
         }
     }
 
-    @Override
-    public boolean equals(Object obj) {
-        return obj == this || obj instanceof ByteVector && equals((ByteVector) obj);
+    private static Object take(Object node, int shift, int n) {
+        if (shift == 0) return node;
+
+        int[] oldMeta = meta(node);
+        int i = childContaining(oldMeta, n - 1, shift);
+        int start = i == 0 ? 0 : oldMeta[i - 1];
+        Object child = ((Object[]) node)[i];
+        if (n < oldMeta[i]) {
+            child = take(child, shift - 5, n - start);
+        }
+
+        Object[] result = emptyNode();
+        int[] meta = meta(result);
+        System.arraycopy(node, 0, result, 0, i);
+        System.arraycopy(oldMeta, 0, meta, 0, i);
+        System.arraycopy(oldMeta, NEWLINES, meta, NEWLINES, i);
+        meta[32] = i;
+        append(result, child, n - start, newlinesOf(child, n - start));
+        return result;
     }
 
-    boolean equals(ByteVector that) {
-        if (this.size != that.size) return false;
+    public ByteVector dropLast(int n) {
+        return take(size - n);
+    }
 
-        int i;
-        for (i = 0; i + 32 < size; i += 32) {
-            if (!Arrays.equals(this.leafContaining(i), that.leafContaining(i))) return false;
+    public ByteVector drop(int n) {
+        if (n <= 0) {
+            return this;
+        } else if (n >= size) {
+            return EMPTY;
+        } else if (n >= treeSize) {
+            byte[] tail = new byte[32];
+            System.arraycopy(this.tail, n - treeSize, tail, 0, size - n);
+            return new ByteVector(null, 0, 0, tail, size - n);
+        } else {
+            return normalized(drop(root, shift, treeSize, n), treeSize - n, tail, size - n);
         }
+    }
 
-        for (; i < size; ++i) {
-            if (this.tail[i & 31] != that.tail[i & 31]) return false;
+    private static Object drop(Object node, int shift, int size, int n) {
+        if (shift == 0) {
+            byte[] leaf = new byte[32];
+            System.arraycopy(node, n, leaf, 0, size - n);
+            return leaf;
         }
 
-        return true;
+        int[] oldMeta = meta(node);
+        final int count = oldMeta[32];
+        int i = childContaining(oldMeta, n, shift);
+        int start = i == 0 ? 0 : oldMeta[i - 1];
+        Object child = ((Object[]) node)[i];
+        if (n > start) {
+            child = drop(child, shift - 5, oldMeta[i] - start, n - start);
+        }
+
+        Object[] result = emptyNode();
+        append(result, child, oldMeta[i] - n, newlinesOf(child, oldMeta[i] - n));
+        for (int k = i + 1; k < count; ++k) {
+            append(result, ((Object[]) node)[k], sizeOfChild(oldMeta, k), newlinesOfChild(oldMeta, k));
+        }
+        return result;
     }
 
-    @Override
-    public int hashCode() {
-        int hash = 0;
+    public ByteVector concat(ByteVector that) {
+        if (that.isEmpty()) return this;
+        if (this.isEmpty()) return that;
 
-        int i;
-        for (i = 0; i + 32 < size; i += 32) {
-            for (byte b : leafContaining(i)) {
-                hash = hash * 31 + b;
+        if (that.treeSize == 0) {
+            return pushAll(that.tail, 0, that.size);
+        }
+        // our tail joins the tree as a possibly partial leaf
+        Object left = withLeaf(root, shift, treeSize, tail, size - treeSize);
+        int leftShift = shiftOf(left);
+        Object[] merged = concat(left, leftShift, size, that.root, that.shift, that.treeSize);
+        return normalized(merged, size + that.treeSize, that.tail, size + that.size);
+    }
+
+    // Relaxed radix balanced concatenation, see Bagwell and Rompf: "RRB-Trees: Efficient Immutable Vectors".
+    // Returns a node one level above the higher tree, with one or two children.
+    private static Object[] concat(Object left, int leftShift, int leftSize, Object right, int rightShift, int rightSize) {
+        if (leftShift > rightShift) {
+            int[] meta = meta(left);
+            int last = meta[32] - 1;
+            Object[] mid = concat(((Object[]) left)[last], leftShift - 5, sizeOfChild(meta, last), right, rightShift, rightSize);
+            return rebalance((Object[]) left, mid, null, leftShift);
+        } else if (leftShift < rightShift) {
+            Object[] mid = concat(left, leftShift, leftSize, ((Object[]) right)[0], rightShift - 5, meta(right)[0]);
+            return rebalance(null, mid, (Object[]) right, rightShift);
+        } else if (leftShift == 0) {
+            return node2(left, leftSize, right, rightSize);
+        } else {
+            int[] meta = meta(left);
+            int last = meta[32] - 1;
+            Object[] mid = concat(((Object[]) left)[last], leftShift - 5, sizeOfChild(meta, last),
+                    ((Object[]) right)[0], rightShift - 5, meta(right)[0]);
+            return rebalance((Object[]) left, mid, (Object[]) right, leftShift);
+        }
+    }
+
+    // allowed number of extra search steps
+    private static final int EXTRAS = 2;
+
+    private static Object[] rebalance(Object[] left, Object[] mid, Object[] right, int shift) {
+        // gather all children, except those replaced by mid
+        final int leftCount = left == null ? 0 : countOf(left) - 1;
+        final int midCount = countOf(mid);
+        final int rightCount = right == null ? 0 : countOf(right) - 1;
+        final int n = leftCount + midCount + rightCount;
+        Object[] all = new Object[n];
+        int[] sizes = new int[n];
+        int[] newlines = new int[n];
+        int k = 0;
+        for (int i = 0; i < leftCount; ++i, ++k) {
+            all[k] = left[i];
+            sizes[k] = sizeOfChild(meta(left), i);
+            newlines[k] = newlinesOfChild(meta(left), i);
+        }
+        for (int i = 0; i < midCount; ++i, ++k) {
+            all[k] = mid[i];
+            sizes[k] = sizeOfChild(meta(mid), i);
+            newlines[k] = newlinesOfChild(meta(mid), i);
+        }
+        for (int i = 1; i <= rightCount; ++i, ++k) {
+            all[k] = right[i];
+            sizes[k] = sizeOfChild(meta(right), i);
+            newlines[k] = newlinesOfChild(meta(right), i);
+        }
+
+        // slots are bytes for leaves and children for nodes
+        int[] slots = new int[n];
+        for (int i = 0; i < n; ++i) {
+            slots[i] = shift == 5 ? sizes[i] : countOf(all[i]);
+        }
+        int[] plan = plan(slots.clone());
+        final int m = plan.length;
+
+        Object[] children = new Object[m];
+        int[] childSizes = new int[m];
+        int[] childNewlines = new int[m];
+        int src = 0;
+        int offset = 0;
+        for (int j = 0; j < m; ++j) {
+            final int wanted = plan[j];
+            if (offset == 0 && slots[src] == wanted) {
+                // reuse child as is
+                children[j] = all[src];
+                childSizes[j] = sizes[src];
+                childNewlines[j] = newlines[src];
+                ++src;
+                continue;
+            }
+            Object[] node = shift == 5 ? null : emptyNode();
+            byte[] leaf = shift == 5 ? new byte[32] : null;
+            int filled = 0;
+            while (filled < wanted) {
+                int chunk = Math.min(wanted - filled, slots[src] - offset);
+                if (shift == 5) {
+                    System.arraycopy(all[src], offset, leaf, filled, chunk);
+                } else {
+                    Object[] from = (Object[]) all[src];
+                    int[] fromMeta = meta(from);
+                    for (int i = offset; i < offset + chunk; ++i) {
+                        append(node, from[i], sizeOfChild(fromMeta, i), newlinesOfChild(fromMeta, i));
+                    }
+                }
+                filled += chunk;
+                offset += chunk;
+                if (offset == slots[src]) {
+                    ++src;
+                    offset = 0;
+                }
+            }
+            if (shift == 5) {
+                children[j] = leaf;
+                childSizes[j] = wanted;
+                childNewlines[j] = newlinesIn(leaf, 0, wanted);
+            } else {
+                children[j] = node;
+                childSizes[j] = sizeOf(node);
+                childNewlines[j] = newlinesOf(node, childSizes[j]);
             }
         }
 
-        for (; i < size; ++i) {
-            hash = hash * 31 + tail[i & 31];
+        if (m <= 32) {
+            Object[] node = node(children, childSizes, childNewlines, 0, m);
+            return node1(node, sizeOf(node));
+        } else {
+            Object[] first = node(children, childSizes, childNewlines, 0, 32);
+            Object[] second = node(children, childSizes, childNewlines, 32, m);
+            return node2(first, sizeOf(first), second, sizeOf(second));
         }
+    }
 
-        return hash;
+    // Merges underfull neighbours until at most EXTRAS more children remain than strictly necessary.
+    private static int[] plan(int[] slots) {
+        int n = slots.length;
+        int total = 0;
+        for (int s : slots) {
+            total += s;
+        }
+        final int optimal = ((total - 1) >>> 5) + 1;
+        int i = 0;
+        while (optimal + EXTRAS < n) {
+            while (slots[i] > 32 - EXTRAS / 2) {
+                ++i;
+            }
+            // distribute slots[i] over its right neighbours
+            int remaining = slots[i];
+            while (remaining > 0) {
+                int minSize = Math.min(remaining + slots[i + 1], 32);
+                slots[i] = minSize;
+                remaining += slots[i + 1] - minSize;
+                ++i;
+            }
+            System.arraycopy(slots, i + 1, slots, i, n - 1 - i);
+            --i;
+            --n;
+        }
+        return Arrays.copyOf(slots, n);
+    }
+
+    // TRANSIENT
+
+    public Transient asTransient() {
+        return new Transient(this);
+    }
+
+    /**
+     * Batch-mutable version of a ByteVector. Writes into its own tail and tree nodes in place,
+     * so pushing many bytes allocates one leaf per 32 bytes instead of one vector per byte.
+     * Calling persistent() freezes the result in O(1) and invalidates the transient.
+     */
+    public static final class Transient {
+        private Object root;
+        private int shift;
+        private int treeSize;
+        private byte[] tail;
+        private int size;
+
+        private boolean ownsTail;
+        // owned[shift / 5] is the only node at that height we may mutate in place
+        private final Object[][] owned = new Object[7][];
+
+        private Transient(ByteVector v) {
+            root = v.root;
+            shift = v.shift;
+            treeSize = v.treeSize;
+            tail = v.tail;
+            size = v.size;
+        }
+
+        private void ensureEditable() {
+            if (tail == null) throw new IllegalStateException("transient used after persistent");
+        }
+
+        public boolean isEmpty() {
+            ensureEditable();
+            return size == 0;
+        }
+
+        public int size() {
+            ensureEditable();
+            return size;
+        }
+
+        public byte top() {
+            ensureEditable();
+            if (size == 0) throw new IllegalStateException("top on empty vector");
+
+            return tail[size - treeSize - 1];
+        }
+
+        public Transient push(byte x) {
+            ensureEditable();
+            int tailSize = size - treeSize;
+            if (tailSize == 32) {
+                integrateTail();
+                tailSize = 0;
+            } else if (!ownsTail) {
+                tail = Arrays.copyOf(tail, 32);
+                ownsTail = true;
+            }
+            tail[tailSize] = x;
+            ++size;
+            return this;
+        }
+
+        public Transient pushAll(byte[] src, int offset, int length) {
+            ensureEditable();
+            while (length > 0) {
+                int tailSize = size - treeSize;
+                if (tailSize == 32) {
+                    integrateTail();
+                    tailSize = 0;
+                } else if (!ownsTail) {
+                    tail = Arrays.copyOf(tail, 32);
+                    ownsTail = true;
+                }
+                int chunk = Math.min(32 - tailSize, length);
+                System.arraycopy(src, offset, tail, tailSize, chunk);
+                size += chunk;
+                offset += chunk;
+                length -= chunk;
+            }
+            return this;
+        }
+
+        public Transient pushAll(ByteVector that) {
+            ensureEditable();
+            if (that.root != null) {
+                pushLeaves(that.root, that.shift, that.treeSize);
+            }
+            return pushAll(that.tail, 0, that.size - that.treeSize);
+        }
+
+        private void pushLeaves(Object node, int shift, int size) {
+            if (shift == 0) {
+                pushAll((byte[]) node, 0, size);
+            } else {
+                Object[] children = (Object[]) node;
+                int[] meta = meta(node);
+                final int count = meta[32];
+                for (int i = 0; i < count; ++i) {
+                    pushLeaves(children[i], shift - 5, sizeOfChild(meta, i));
+                }
+            }
+        }
+
+        private void integrateTail() {
+            if (root == null) {
+                root = tail;
+            } else if (shift == 0) {
+                root = owned(node2(root, treeSize, tail, 32), 5);
+                shift = 5;
+            } else {
+                Object[] appended = withLeaf((Object[]) root, shift, tail, newlinesIn(tail, 0, 32));
+                if (appended != null) {
+                    // same height
+                    root = appended;
+                } else {
+                    // increased height
+                    root = owned(node2(root, treeSize, ownedPath(tail, shift), 32), shift + 5);
+                    shift += 5;
+                }
+            }
+            treeSize += 32;
+            // the full tail now belongs to the tree
+            tail = new byte[32];
+            ownsTail = true;
+        }
+
+        private Object[] withLeaf(Object[] node, int shift, byte[] leaf, int leafNewlines) {
+            final int count = countOf(node);
+            if (shift > 5) {
+                Object child = withLeaf((Object[]) node[count - 1], shift - 5, leaf, leafNewlines);
+                if (child != null) {
+                    Object[] editable = editable(node, shift);
+                    int[] meta = meta(editable);
+                    editable[count - 1] = child;
+                    meta[count - 1] += 32;
+                    meta[NEWLINES + count - 1] += leafNewlines;
+                    return editable;
+                }
+            }
+            if (count == 32) return null;
+
+            Object[] editable = editable(node, shift);
+            append(editable, ownedPath(leaf, shift - 5), 32, leafNewlines);
+            return editable;
+        }
+
+        private Object ownedPath(byte[] leaf, int shift) {
+            Object node = leaf;
+            for (int s = 5; s <= shift; s += 5) {
+                node = owned(node1(node, 32), s);
+            }
+            return node;
+        }
+
+        private Object[] owned(Object[] node, int shift) {
+            owned[shift / 5] = node;
+            return node;
+        }
+
+        private Object[] editable(Object[] node, int shift) {
+            if (node == owned[shift / 5]) return node;
+
+            return owned(copy(node), shift);
+        }
+
+        public Transient pop() {
+            ensureEditable();
+            if (size == 0) throw new IllegalStateException("pop on empty vector");
+
+            if (size - treeSize == 1 && treeSize > 0) {
+                ByteVector popped = new ByteVector(root, shift, treeSize, tail, size).take(size - 1);
+                root = popped.root;
+                shift = popped.shift;
+                treeSize = popped.treeSize;
+                tail = popped.tail;
+                ownsTail = false;
+            }
+            --size;
+            return this;
+        }
+
+        public ByteVector persistent() {
+            ensureEditable();
+            ByteVector result = size == 0 ? EMPTY : new ByteVector(root, shift, treeSize, tail, size);
+            root = null;
+            tail = null;
+            return result;
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj == this || obj instanceof ByteVector && equals((ByteVector) obj);
+    }
+
+    boolean equals(ByteVector that) {
+        return this.size == that.size && Arrays.equals(this.toArray(), that.toArray());
+    }
+
+    @Override
+    public int hashCode() {
+        int[] hash = {0};
+        forEachChunk((chunk, from, to, origin) -> {
+            for (int i = from; i < to; ++i) {
+                hash[0] = hash[0] * 31 + chunk[i];
+            }
+        });
+        return hash[0];
     }
 
     @Override
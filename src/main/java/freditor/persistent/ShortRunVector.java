@@ -0,0 +1,735 @@
+package freditor.persistent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public final class ShortRunVector {
+    // An AVL tree of leaves, each holding up to 128 runs of equal shorts,
+    // 3 bytes per run: the value and the length - 1 as an unsigned byte.
+    // Longer runs are split. Split and concat are join based, O(log n).
+    // Optional weights per value keep prefix sums searchable, like nesting depths.
+    private static final int RUNS = 128;
+    private static final int MAX_LENGTH = 256;
+
+    private static final class Leaf {
+        final short[] values;
+        final byte[] lengths;
+        final byte[] weights;
+        final int length;
+        final int negatives;
+        // total weight, and the extreme weights of the prefixes [0, 1] to [0, length]
+        final int sum;
+        final int min;
+        final int max;
+
+        Leaf(short[] values, byte[] lengths, byte[] weights) {
+            assert values.length == lengths.length && values.length > 0;
+
+            this.values = values;
+            this.lengths = lengths;
+            this.weights = weights;
+            int length = 0;
+            int negatives = 0;
+            int sum = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int r = 0; r < values.length; ++r) {
+                length += lengthOf(r);
+                if (values[r] < 0) {
+                    negatives += lengthOf(r);
+                }
+                int weight = weightOf(r);
+                int first = sum + weight;
+                sum += weight * lengthOf(r);
+                min = Math.min(min, Math.min(first, sum));
+                max = Math.max(max, Math.max(first, sum));
+            }
+            this.length = length;
+            this.negatives = negatives;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        int runs() {
+            return values.length;
+        }
+
+        int lengthOf(int run) {
+            return (lengths[run] & 255) + 1;
+        }
+
+        int weightOf(int run) {
+            return weights == null ? 0 : weights[values[run] & 0xffff];
+        }
+
+        // the smallest prefix weight, with the sign flipped for searching maxima
+        int lowest(int sign) {
+            return sign > 0 ? min : -max;
+        }
+
+        int negativesBefore(int n) {
+            int negatives = 0;
+            for (int r = 0; n > 0; ++r) {
+                int length = Math.min(lengthOf(r), n);
+                if (values[r] < 0) {
+                    negatives += length;
+                }
+                n -= length;
+            }
+            return negatives;
+        }
+
+        int indexOfNegative(int k) {
+            int index = 0;
+            for (int r = 0; ; ++r) {
+                int length = lengthOf(r);
+                if (values[r] < 0) {
+                    if (k < length) return index + k;
+
+                    k -= length;
+                }
+                index += length;
+            }
+        }
+
+        int weightBefore(int n) {
+            int weight = 0;
+            for (int r = 0; n > 0; ++r) {
+                int length = Math.min(lengthOf(r), n);
+                weight += weightOf(r) * length;
+                n -= length;
+            }
+            return weight;
+        }
+
+        // the first x in (from, offset + length] with sign * weightBefore(x) < sign * weight
+        int indexOfWeight(int offset, int base, int from, int weight, int sign) {
+            final int target = sign * weight;
+            if (offset + length <= from || sign * base + lowest(sign) >= target) return -1;
+
+            int index = offset;
+            int prefix = sign * base;
+            for (int r = 0; r < runs(); ++r) {
+                int w = sign * weightOf(r);
+                int length = lengthOf(r);
+                int k = Math.max(1, from - index + 1);
+                if (w < 0) {
+                    int d = prefix - target;
+                    k = Math.max(k, d < 0 ? 1 : d / -w + 1);
+                }
+                if (k <= length && prefix + w * k < target) return index + k;
+
+                index += length;
+                prefix += w * length;
+            }
+            return -1;
+        }
+
+        // the last x in (offset, min(offset + length, to - 1)] with sign * weightBefore(x) < sign * weight
+        int lastIndexOfWeight(int offset, int base, int to, int weight, int sign) {
+            final int target = sign * weight;
+            if (offset + 1 >= to || sign * base + lowest(sign) >= target) return -1;
+
+            int found = -1;
+            int index = offset;
+            int prefix = sign * base;
+            for (int r = 0; r < runs() && index + 1 < to; ++r) {
+                int w = sign * weightOf(r);
+                int length = lengthOf(r);
+                int k = Math.min(length, to - 1 - index);
+                if (w > 0) {
+                    int d = target - prefix;
+                    k = Math.min(k, d <= 0 ? 0 : (d - 1) / w);
+                }
+                if (k >= 1 && prefix + w * k < target) {
+                    found = index + k;
+                }
+                index += length;
+                prefix += w * length;
+            }
+            return found;
+        }
+
+        Leaf take(int n) {
+            int r = 0;
+            while (n > lengthOf(r)) {
+                n -= lengthOf(r++);
+            }
+            byte[] lengths = Arrays.copyOf(this.lengths, r + 1);
+            lengths[r] = (byte) (n - 1);
+            return new Leaf(Arrays.copyOf(values, r + 1), lengths, weights);
+        }
+
+        Leaf drop(int n) {
+            int r = 0;
+            while (n >= lengthOf(r)) {
+                n -= lengthOf(r++);
+            }
+            byte[] lengths = Arrays.copyOfRange(this.lengths, r, runs());
+            lengths[0] = (byte) (lengthOf(r) - n - 1);
+            return new Leaf(Arrays.copyOfRange(values, r, runs()), lengths, weights);
+        }
+    }
+
+    private static final class Node {
+        final Node left;
+        final Leaf leaf;
+        final Node right;
+        // elements, runs and negative elements in the whole subtree
+        final int size;
+        final int runs;
+        final int negatives;
+        // total weight, and the extreme prefix weights in the whole subtree
+        final int sum;
+        final int min;
+        final int max;
+        final int height;
+
+        Node(Node left, Leaf leaf, Node right) {
+            assert Math.abs(height(left) - height(right)) <= 1 : height(left) + " vs " + height(right);
+
+            this.left = left;
+            this.leaf = leaf;
+            this.right = right;
+            this.size = size(left) + leaf.length + size(right);
+            this.runs = runs(left) + leaf.runs() + runs(right);
+            this.negatives = negatives(left) + leaf.negatives + negatives(right);
+            final int beforeLeaf = sum(left);
+            final int afterLeaf = beforeLeaf + leaf.sum;
+            this.sum = afterLeaf + sum(right);
+            int min = beforeLeaf + leaf.min;
+            int max = beforeLeaf + leaf.max;
+            if (left != null) {
+                min = Math.min(min, left.min);
+                max = Math.max(max, left.max);
+            }
+            if (right != null) {
+                min = Math.min(min, afterLeaf + right.min);
+                max = Math.max(max, afterLeaf + right.max);
+            }
+            this.min = min;
+            this.max = max;
+            this.height = Math.max(height(left), height(right)) + 1;
+        }
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static int runs(Node node) {
+        return node == null ? 0 : node.runs;
+    }
+
+    private static int negatives(Node node) {
+        return node == null ? 0 : node.negatives;
+    }
+
+    private static int sum(Node node) {
+        return node == null ? 0 : node.sum;
+    }
+
+    private static int lowest(Node node, int sign) {
+        return sign > 0 ? node.min : -node.max;
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    // the run that get found last, so sequential scans rarely descend the tree
+    private static final class Hint {
+        final Leaf leaf;
+        final int run;
+        final int start;
+        final int end;
+
+        Hint(Leaf leaf, int run, int start) {
+            this.leaf = leaf;
+            this.run = run;
+            this.start = start;
+            this.end = start + leaf.lengthOf(run);
+        }
+    }
+
+    private final Node root;
+    private final byte[] weights;
+    // benign race, hints are immutable
+    private Hint hint;
+
+    private ShortRunVector(Node root, byte[] weights) {
+        this.root = root;
+        this.weights = weights;
+    }
+
+    public static final ShortRunVector EMPTY = new ShortRunVector(null, null);
+
+    /**
+     * Returns an empty vector where each element x weighs weights[x & 0xffff],
+     * shared by all vectors derived from it. Elements of EMPTY weigh nothing.
+     */
+    public static ShortRunVector empty(byte[] weights) {
+        if (weights == null) return EMPTY;
+        if (weights.length != 1 << 16) throw new IllegalArgumentException("weights.length " + weights.length);
+
+        return new ShortRunVector(null, weights);
+    }
+
+    public static ShortRunVector of(short... elements) {
+        Transient result = EMPTY.asTransient();
+        for (short element : elements) {
+            result.push(element);
+        }
+        return result.persistent();
+    }
+
+    // ACCESS
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Returns the number of stored runs, which is at least the number of maximal runs
+     * of equal neighbors, because long runs and some leaf seams split them.
+     */
+    public int runs() {
+        return runs(root);
+    }
+
+    public short get(int index) {
+        Hint h = hint;
+        if (h != null) {
+            if (index >= h.start && index < h.end) return h.leaf.values[h.run];
+
+            if (index >= h.end && h.run + 1 < h.leaf.runs()) {
+                Hint next = new Hint(h.leaf, h.run + 1, h.end);
+                if (index < next.end) {
+                    hint = next;
+                    return next.leaf.values[next.run];
+                }
+            }
+        }
+        final int size = size();
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index + " >= " + size);
+
+        Node node = root;
+        int offset = 0;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < offset + leftSize) {
+                node = node.left;
+            } else if (index < offset + leftSize + node.leaf.length) {
+                Leaf leaf = node.leaf;
+                int start = offset + leftSize;
+                for (int r = 0; ; ++r) {
+                    int end = start + leaf.lengthOf(r);
+                    if (index < end) {
+                        hint = new Hint(leaf, r, start);
+                        return leaf.values[r];
+                    }
+                    start = end;
+                }
+            } else {
+                offset += leftSize + node.leaf.length;
+                node = node.right;
+            }
+        }
+    }
+
+    // RANK AND SELECT
+
+    /**
+     * Counts the negative elements at indices below the given index.
+     */
+    public int negativesBefore(int index) {
+        if (index <= 0) return 0;
+        if (index >= size()) return negatives(root);
+
+        Node node = root;
+        int negatives = 0;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else {
+                negatives += negatives(node.left);
+                index -= leftSize;
+                if (index <= node.leaf.length) return negatives + node.leaf.negativesBefore(index);
+
+                negatives += node.leaf.negatives;
+                index -= node.leaf.length;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Finds the index of the k-th negative element, counting from 0, or returns -1.
+     */
+    public int indexOfNegative(int k) {
+        if (k < 0 || k >= negatives(root)) return -1;
+
+        Node node = root;
+        int index = 0;
+        while (true) {
+            int leftNegatives = negatives(node.left);
+            if (k < leftNegatives) {
+                node = node.left;
+            } else {
+                k -= leftNegatives;
+                index += size(node.left);
+                if (k < node.leaf.negatives) return index + node.leaf.indexOfNegative(k);
+
+                k -= node.leaf.negatives;
+                index += node.leaf.length;
+                node = node.right;
+            }
+        }
+    }
+
+    // PREFIX SUMS
+
+    /**
+     * Sums the weights of the elements at indices below the given index.
+     */
+    public int weightBefore(int index) {
+        if (index <= 0) return 0;
+        if (index >= size()) return sum(root);
+
+        Node node = root;
+        int weight = 0;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else {
+                weight += sum(node.left);
+                index -= leftSize;
+                if (index <= node.leaf.length) return weight + node.leaf.weightBefore(index);
+
+                weight += node.leaf.sum;
+                index -= node.leaf.length;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Finds the smallest index x after from with weightBefore(x) below the given weight, or returns -1.
+     */
+    public int indexOfWeightBelow(int from, int weight) {
+        return indexOfWeight(from, weight, 1);
+    }
+
+    /**
+     * Finds the smallest index x after from with weightBefore(x) above the given weight, or returns -1.
+     */
+    public int indexOfWeightAbove(int from, int weight) {
+        return indexOfWeight(from, weight, -1);
+    }
+
+    /**
+     * Finds the largest index x before to with weightBefore(x) below the given weight, or returns -1.
+     */
+    public int lastIndexOfWeightBelow(int to, int weight) {
+        return lastIndexOfWeight(to, weight, 1);
+    }
+
+    /**
+     * Finds the largest index x before to with weightBefore(x) above the given weight, or returns -1.
+     */
+    public int lastIndexOfWeightAbove(int to, int weight) {
+        return lastIndexOfWeight(to, weight, -1);
+    }
+
+    // Maxima are found as minima with the sign flipped. Subtrees whose lowest prefix
+    // is not below the target are skipped, so a search descends O(log n) nodes.
+
+    private int indexOfWeight(int from, int weight, int sign) {
+        if (from < 0 && 0 < sign * weight) return 0;
+
+        return indexOfWeight(root, 0, 0, from, weight, sign);
+    }
+
+    private static int indexOfWeight(Node node, int offset, int base, int from, int weight, int sign) {
+        if (node == null || offset + node.size <= from) return -1;
+        if (sign * base + lowest(node, sign) >= sign * weight) return -1;
+
+        int found = indexOfWeight(node.left, offset, base, from, weight, sign);
+        if (found >= 0) return found;
+
+        offset += size(node.left);
+        base += sum(node.left);
+        found = node.leaf.indexOfWeight(offset, base, from, weight, sign);
+        if (found >= 0) return found;
+
+        return indexOfWeight(node.right, offset + node.leaf.length, base + node.leaf.sum, from, weight, sign);
+    }
+
+    private int lastIndexOfWeight(int to, int weight, int sign) {
+        int found = lastIndexOfWeight(root, 0, 0, to, weight, sign);
+        if (found < 0 && to > 0 && 0 < sign * weight) return 0;
+
+        return found;
+    }
+
+    private static int lastIndexOfWeight(Node node, int offset, int base, int to, int weight, int sign) {
+        if (node == null || offset + 1 >= to) return -1;
+        if (sign * base + lowest(node, sign) >= sign * weight) return -1;
+
+        final int leafOffset = offset + size(node.left);
+        final int leafBase = base + sum(node.left);
+        int found = lastIndexOfWeight(node.right, leafOffset + node.leaf.length, leafBase + node.leaf.sum, to, weight, sign);
+        if (found >= 0) return found;
+
+        found = node.leaf.lastIndexOfWeight(leafOffset, leafBase, to, weight, sign);
+        if (found >= 0) return found;
+
+        return lastIndexOfWeight(node.left, offset, base, to, weight, sign);
+    }
+
+    // JOIN
+
+    private static Node join(Node left, Leaf leaf, Node right) {
+        final int leftHeight = height(left);
+        final int rightHeight = height(right);
+        if (leftHeight > rightHeight + 1) {
+            return balanced(left.left, left.leaf, join(left.right, leaf, right));
+        } else if (rightHeight > leftHeight + 1) {
+            return balanced(join(left, leaf, right.left), right.leaf, right.right);
+        } else {
+            return new Node(left, leaf, right);
+        }
+    }
+
+    // at most one of the subtrees is 2 levels higher than the other
+    private static Node balanced(Node left, Leaf leaf, Node right) {
+        final int leftHeight = height(left);
+        final int rightHeight = height(right);
+        if (leftHeight > rightHeight + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node(left.left, left.leaf, new Node(left.right, leaf, right));
+            }
+            Node pivot = left.right;
+            return new Node(new Node(left.left, left.leaf, pivot.left), pivot.leaf, new Node(pivot.right, leaf, right));
+        } else if (rightHeight > leftHeight + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node(new Node(left, leaf, right.left), right.leaf, right.right);
+            }
+            Node pivot = right.left;
+            return new Node(new Node(left, leaf, pivot.left), pivot.leaf, new Node(pivot.right, right.leaf, right.right));
+        } else {
+            return new Node(left, leaf, right);
+        }
+    }
+
+    private static Leaf firstLeaf(Node node) {
+        while (node.left != null) {
+            node = node.left;
+        }
+        return node.leaf;
+    }
+
+    private static Node withoutFirstLeaf(Node node) {
+        if (node.left == null) return node.right;
+
+        return join(withoutFirstLeaf(node.left), node.leaf, node.right);
+    }
+
+    private static Leaf lastLeaf(Node node) {
+        while (node.right != null) {
+            node = node.right;
+        }
+        return node.leaf;
+    }
+
+    private static Node withoutLastLeaf(Node node) {
+        if (node.right == null) return node.left;
+
+        return join(node.left, node.leaf, withoutLastLeaf(node.right));
+    }
+
+    // SPLIT AND CONCAT
+
+    public ShortRunVector take(int n) {
+        if (n <= 0) return empty(weights);
+        if (n >= size()) return this;
+
+        return new ShortRunVector(take(root, n), weights);
+    }
+
+    private static Node take(Node node, int n) {
+        if (node == null || n <= 0) return null;
+        if (n >= node.size) return node;
+
+        final int leftSize = size(node.left);
+        if (n <= leftSize) return take(node.left, n);
+
+        n -= leftSize;
+        if (n < node.leaf.length) return join(node.left, node.leaf.take(n), null);
+
+        return join(node.left, node.leaf, take(node.right, n - node.leaf.length));
+    }
+
+    public ShortRunVector drop(int n) {
+        if (n <= 0) return this;
+        if (n >= size()) return empty(weights);
+
+        return new ShortRunVector(drop(root, n), weights);
+    }
+
+    private static Node drop(Node node, int n) {
+        if (node == null || n >= node.size) return null;
+        if (n <= 0) return node;
+
+        final int leftSize = size(node.left);
+        if (n < leftSize) return join(drop(node.left, n), node.leaf, node.right);
+
+        n -= leftSize;
+        if (n < node.leaf.length) return join(null, node.leaf.drop(n), node.right);
+
+        return drop(node.right, n - node.leaf.length);
+    }
+
+    public ShortRunVector concat(ShortRunVector that) {
+        if (this.weights != that.weights) throw new IllegalArgumentException("concat of differently weighted vectors");
+        if (that.isEmpty()) return this;
+        if (this.isEmpty()) return that;
+
+        Leaf last = lastLeaf(this.root);
+        Leaf seam = merged(last, firstLeaf(that.root));
+        if (seam == null) {
+            return new ShortRunVector(join(withoutLastLeaf(this.root), last, that.root), weights);
+        }
+        return new ShortRunVector(join(withoutLastLeaf(this.root), seam, withoutFirstLeaf(that.root)), weights);
+    }
+
+    // small leaves meeting at a seam merge, so repeated edits do not fragment the tree
+    private static Leaf merged(Leaf last, Leaf first) {
+        final int lastRun = last.runs() - 1;
+        final boolean joined = last.values[lastRun] == first.values[0]
+                && last.lengthOf(lastRun) + first.lengthOf(0) <= MAX_LENGTH;
+        final int skip = joined ? 1 : 0;
+        final int n = last.runs() + first.runs() - skip;
+        if (n > RUNS) return null;
+
+        short[] values = Arrays.copyOf(last.values, n);
+        byte[] lengths = Arrays.copyOf(last.lengths, n);
+        System.arraycopy(first.values, skip, values, last.runs(), first.runs() - skip);
+        System.arraycopy(first.lengths, skip, lengths, last.runs(), first.runs() - skip);
+        if (joined) {
+            lengths[lastRun] = (byte) (last.lengthOf(lastRun) + first.lengthOf(0) - 1);
+        }
+        return new Leaf(values, lengths, last.weights);
+    }
+
+    // TRANSIENT
+
+    public Transient asTransient() {
+        return new Transient(this);
+    }
+
+    public static final class Transient {
+        private final byte[] weights;
+        private Node root;
+        private ArrayList<Leaf> leaves = new ArrayList<>();
+        private short[] values = new short[RUNS];
+        private byte[] lengths = new byte[RUNS];
+        private int count;
+        private int size;
+
+        private Transient(ShortRunVector v) {
+            weights = v.weights;
+            size = v.size();
+            if (v.root != null) {
+                // the last leaf keeps growing
+                Leaf last = lastLeaf(v.root);
+                root = withoutLastLeaf(v.root);
+                count = last.runs();
+                System.arraycopy(last.values, 0, values, 0, count);
+                System.arraycopy(last.lengths, 0, lengths, 0, count);
+            }
+        }
+
+        private void ensureEditable() {
+            if (leaves == null) throw new IllegalStateException("transient used after persistent");
+        }
+
+        public int size() {
+            ensureEditable();
+            return size;
+        }
+
+        public Transient push(short x) {
+            return pushRun(x, 1);
+        }
+
+        public Transient pushRun(short x, int n) {
+            ensureEditable();
+            size += n;
+            while (n > 0) {
+                int top = count - 1;
+                if (count > 0 && values[top] == x && lengths[top] != -1) {
+                    int length = (lengths[top] & 255) + 1;
+                    int k = Math.min(n, MAX_LENGTH - length);
+                    lengths[top] = (byte) (length + k - 1);
+                    n -= k;
+                } else {
+                    if (count == RUNS) {
+                        leaves.add(new Leaf(values, lengths, weights));
+                        values = new short[RUNS];
+                        lengths = new byte[RUNS];
+                        count = 0;
+                    }
+                    int k = Math.min(n, MAX_LENGTH);
+                    values[count] = x;
+                    lengths[count] = (byte) (k - 1);
+                    ++count;
+                    n -= k;
+                }
+            }
+            return this;
+        }
+
+        public ShortRunVector persistent() {
+            ensureEditable();
+            if (count > 0) {
+                leaves.add(new Leaf(Arrays.copyOf(values, count), Arrays.copyOf(lengths, count), weights));
+            }
+            Node appended = tree(leaves, 0, leaves.size());
+            leaves = null;
+            values = null;
+            lengths = null;
+            if (appended == null) return new ShortRunVector(root, weights);
+            if (root == null) return new ShortRunVector(appended, weights);
+
+            return new ShortRunVector(join(root, firstLeaf(appended), withoutFirstLeaf(appended)), weights);
+        }
+
+        private static Node tree(ArrayList<Leaf> leaves, int from, int to) {
+            if (from == to) return null;
+
+            int mid = (from + to) >>> 1;
+            return new Node(tree(leaves, from, mid), leaves.get(mid), tree(leaves, mid + 1, to));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        final int size = size();
+        for (int i = 0; i < size; ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(get(i));
+        }
+        return sb.append("]").toString();
+    }
+}
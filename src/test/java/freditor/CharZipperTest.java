@@ -2,13 +2,27 @@ package freditor;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CharZipperTest {
     private final CharZipper text = new CharZipper();
 
+    @Test
+    @SuppressWarnings("deprecation")
+    public void mementoRestoresText() {
+        text.insertAt(0, "hello");
+        CharZipper.Memento memento = text.new Memento();
+        text.insertAt(5, " world");
+        memento.restore();
+        assertEquals("hello", text.toString());
+    }
+
     @Test
     public void insertUnixLineSeparators() {
         insertBytesSeparatedBy("\n");
@@ -28,4 +42,68 @@ public class CharZipperTest {
         byte[] expected = "\none\ntwo\nthree\n".getBytes(StandardCharsets.ISO_8859_1);
         assertArrayEquals(expected, output);
     }
+
+    @Test
+    public void subSequenceAroundFocus() {
+        String input = "The quick brown fox jumps over the lazy dog";
+        text.insertAt(0, input);
+        text.focusOn(10);
+        for (int start = 0; start <= input.length(); ++start) {
+            for (int end = start; end <= input.length(); ++end) {
+                assertEquals(input.substring(start, end), text.subSequence(start, end));
+            }
+        }
+    }
+
+    @Test
+    public void charsAroundFocus() {
+        String input = "The quick brown fox jumps over the lazy dog";
+        text.insertAt(0, input);
+        text.focusOn(20);
+        assertArrayEquals(input.chars().toArray(), text.chars().toArray());
+    }
+
+    @Test
+    public void filterMixedContent() {
+        String input = "public static void main(String[] args) {\r\n\tSystem.out.println(\"caf\u00e9\");\r\n}\r\n";
+        String expected = "public static void main(String[] args) {\n System.out.println(\"caf\u00e9\");\n}\n";
+        text.loadLenient(input.getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(expected, text.toString());
+    }
+
+    @Test
+    public void lenientDropsControlCharacters() {
+        String input = "0123456789\u0000abcdefgh\u007fABCDEFGHIJKLMNOP\u0085";
+        text.loadLenient(input.getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals("0123456789abcdefghABCDEFGHIJKLMNOP", text.toString());
+    }
+
+    @Test
+    public void strictRejectsControlCharacters() {
+        String input = "0123456789abcdefgh\u007fABCDEFGH";
+        UnsupportedEncodingException ex = assertThrows(UnsupportedEncodingException.class,
+                () -> text.loadStrict(input.getBytes(StandardCharsets.ISO_8859_1)));
+        assertTrue(ex.getMessage().startsWith("illegal byte 127 at index 18"));
+    }
+
+    @Test
+    public void replaceRangesInOnePass() {
+        text.insertAt(0, "one two three four");
+        text.focusOn(5);
+        text.replaceRanges(new int[]{0, 4, 8, 18}, new int[]{3, 4, 13, 18}, new CharSequence[]{"1", "and ", "", "!"}, 4);
+        assertEquals("1 and two  four!", text.toString());
+    }
+
+    @Test
+    public void replaceRangesSharesLongStretches() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10_000; ++i) {
+            sb.append("line ").append(i).append('\n');
+        }
+        String input = sb.toString();
+        text.insertAt(0, input);
+        text.replaceRanges(new int[]{5, input.length() - 5}, new int[]{6, input.length() - 5}, new CharSequence[]{"zero", "x"}, 2);
+        String expected = "line zero" + input.substring(6, input.length() - 5) + "x" + input.substring(input.length() - 5);
+        assertEquals(expected, text.toString());
+    }
 }
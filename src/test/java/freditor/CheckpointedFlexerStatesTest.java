@@ -0,0 +1,75 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CheckpointedFlexerStatesTest {
+    private static final Random rng = new Random(System.nanoTime() / 1_000_000_000L);
+
+    private static final String ALPHABET = "if int x \"\"/ /\n\n()";
+
+    private static String randomText(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            sb.append(ALPHABET.charAt(rng.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    private static Freditor freditor(boolean checkpointed) {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        freditor.setCheckpointedLexing(checkpointed);
+        return freditor;
+    }
+
+    private static void assertSameStates(Freditor checkpointed) {
+        Freditor dense = freditor(false);
+        dense.load(checkpointed.toString());
+        for (int i = -1; i <= dense.length(); ++i) {
+            assertSame(dense.stateAt(i), checkpointed.stateAt(i), "state at " + i);
+        }
+        // and backwards, which misses the most recent window all the time
+        for (int i = dense.length() - 1; i >= 0; i -= 7) {
+            assertSame(dense.stateAt(i), checkpointed.stateAt(i), "state at " + i);
+        }
+    }
+
+    @Test
+    public void loadedStates() {
+        Freditor freditor = freditor(true);
+        freditor.load(randomText(5000));
+        assertSameStates(freditor);
+    }
+
+    @Test
+    public void editedStates() {
+        Freditor freditor = freditor(true);
+        freditor.load(randomText(2000));
+        for (int k = 0; k < 200; ++k) {
+            int start = rng.nextInt(freditor.length() + 1);
+            if (rng.nextBoolean()) {
+                freditor.insertAt(start, randomText(rng.nextInt(10)));
+            } else {
+                int end = Math.min(start + rng.nextInt(10), freditor.length());
+                freditor.deleteRange(start, end);
+            }
+            if (freditor.length() == 0) continue;
+
+            int probe = rng.nextInt(freditor.length());
+            assertSame(TestFlexer.instance.nextState(freditor.stateAt(probe - 1), freditor.charAt(probe)), freditor.stateAt(probe));
+        }
+        assertSameStates(freditor);
+    }
+
+    @Test
+    public void switchingModes() {
+        Freditor freditor = freditor(false);
+        freditor.load(randomText(1000));
+        freditor.setCheckpointedLexing(true);
+        assertTrue(freditor.isCheckpointedLexing());
+        assertSameStates(freditor);
+    }
+}
@@ -0,0 +1,261 @@
+package freditor;
+
+import freditor.persistent.ByteVector;
+import freditor.persistent.ShortRunVector;
+import org.junit.jupiter.api.Test;
+
+import java.awt.EventQueue;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DenseFlexerStatesTest {
+    private static final Random rng = new Random(System.nanoTime() / 1_000_000_000L);
+
+    private static final String ALPHABET = "if int x \"\"/ /\n\n()";
+
+    private static String randomText(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            sb.append(ALPHABET.charAt(rng.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    private static void awaitCompletion(DenseFlexerStates states) throws Exception {
+        boolean[] complete = {false};
+        while (!complete[0]) {
+            EventQueue.invokeAndWait(() -> complete[0] = states.isComplete());
+        }
+    }
+
+    private static void assertSameStates(Freditor expected, DenseFlexerStates actual) throws Exception {
+        EventQueue.invokeAndWait(() -> {
+            for (int i = -1; i <= expected.length(); ++i) {
+                assertSame(expected.stateAt(i), actual.stateAt(i), "state at " + i);
+            }
+        });
+    }
+
+    @Test
+    public void smallDocumentsAreLexedEagerly() throws Exception {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        freditor.load(randomText(1000));
+        DenseFlexerStates states = new DenseFlexerStates(freditor);
+        EventQueue.invokeAndWait(() -> {
+            states.refresh();
+            assertTrue(states.isComplete());
+        });
+    }
+
+    @Test
+    public void largeDocumentsAreCompletedInBackground() throws Exception {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        freditor.load(randomText(1_000_000));
+        DenseFlexerStates states = new DenseFlexerStates(freditor);
+        EventQueue.invokeAndWait(() -> {
+            states.refresh();
+            assertFalse(states.isComplete());
+        });
+        awaitCompletion(states);
+        assertSameStates(freditor, states);
+    }
+
+    @Test
+    public void editsDuringBackgroundCompletion() throws Exception {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        freditor.load(randomText(500_000));
+        DenseFlexerStates states = new DenseFlexerStates(freditor);
+        EventQueue.invokeAndWait(() -> {
+            states.refresh();
+            for (int k = 0; k < 100; ++k) {
+                int start = rng.nextInt(freditor.length() + 1);
+                if (rng.nextBoolean()) {
+                    String s = randomText(rng.nextInt(10));
+                    freditor.insertAt(start, s);
+                    states.fix(start, 0, s.length());
+                } else {
+                    int end = Math.min(start + rng.nextInt(10), freditor.length());
+                    freditor.deleteRange(start, end);
+                    states.fix(start, end - start, 0);
+                }
+            }
+        });
+        awaitCompletion(states);
+        assertSameStates(freditor, states);
+    }
+
+    @Test
+    public void statesBeyondTheFrontierAreLexedOnDemand() throws Exception {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        freditor.load(randomText(1_000_000));
+        DenseFlexerStates states = new DenseFlexerStates(freditor);
+        EventQueue.invokeAndWait(() -> {
+            states.refresh();
+            int last = freditor.length() - 1;
+            assertSame(freditor.stateAt(last), states.stateAt(last));
+            assertTrue(states.isComplete());
+        });
+    }
+
+    @Test
+    public void runawayRelexIsTruncatedAndCompletedInBackground() throws Exception {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 1_000_000) {
+            sb.append("while x if y\n");
+        }
+        freditor.load(sb.toString());
+        DenseFlexerStates states = new DenseFlexerStates(freditor);
+        EventQueue.invokeAndWait(() -> {
+            states.refresh();
+            assertFalse(states.isComplete());
+        });
+        awaitCompletion(states);
+        EventQueue.invokeAndWait(() -> {
+            freditor.insertAt(0, "\"");
+            states.fix(0, 0, 1);
+            assertFalse(states.isComplete());
+        });
+        awaitCompletion(states);
+        assertSameStates(freditor, states);
+    }
+
+    @Test
+    public void closingQuoteResynchronizesWithTheOldStates() throws Exception {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 1_000_000) {
+            sb.append("while x if y\n");
+        }
+        freditor.load(sb.toString());
+        DenseFlexerStates states = new DenseFlexerStates(freditor);
+        EventQueue.invokeAndWait(states::refresh);
+        awaitCompletion(states);
+        EventQueue.invokeAndWait(() -> {
+            freditor.insertAt(0, "\"");
+            states.fix(0, 0, 1);
+            assertFalse(states.isComplete());
+            freditor.insertAt(1, "\"");
+            states.fix(1, 0, 1);
+            // one batch past the relexed states agrees with the old ones
+            states.stateAt(1 << 16);
+            assertTrue(states.isComplete());
+        });
+        assertSameStates(freditor, states);
+    }
+
+    @Test
+    public void lexingOnDemandKeepsTheBackgroundGoing() throws Exception {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        freditor.load(randomText(2_000_000));
+        DenseFlexerStates states = new DenseFlexerStates(freditor);
+        EventQueue.invokeAndWait(() -> {
+            states.refresh();
+            for (int i = 1 << 17; i < 1 << 20; i += 1 << 16) {
+                states.stateAt(i);
+            }
+        });
+        awaitCompletion(states);
+        assertSameStates(freditor, states);
+    }
+
+    @Test
+    public void multipleRangesAreFixedInOnePass() throws Exception {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        freditor.load(randomText(100_000));
+        DenseFlexerStates states = new DenseFlexerStates(freditor);
+        EventQueue.invokeAndWait(() -> {
+            states.refresh();
+            for (int round = 0; round < 20; ++round) {
+                final int count = 1 + rng.nextInt(50);
+                int[] starts = new int[count];
+                int[] ends = new int[count];
+                CharSequence[] replacements = new CharSequence[count];
+                int[] newStarts = new int[count];
+                int[] removed = new int[count];
+                int[] inserted = new int[count];
+                int end = 0;
+                int delta = 0;
+                for (int k = 0; k < count; ++k) {
+                    starts[k] = Math.min(end + rng.nextInt(5_000), freditor.length());
+                    end = ends[k] = Math.min(starts[k] + rng.nextInt(5), freditor.length());
+                    replacements[k] = randomText(rng.nextInt(5));
+                    newStarts[k] = starts[k] + delta;
+                    removed[k] = ends[k] - starts[k];
+                    inserted[k] = replacements[k].length();
+                    delta += inserted[k] - removed[k];
+                }
+                freditor.replaceRanges(starts, ends, replacements, count);
+                states.fix(newStarts, removed, inserted, count);
+            }
+        });
+        awaitCompletion(states);
+        Freditor relexed = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        relexed.load(freditor.toString());
+        assertSameStates(relexed, states);
+    }
+
+    @Test
+    public void parallelLexingAgreesWithSequentialLexing() {
+        StringBuilder sb = new StringBuilder(randomText(300_000).replace('"', 'x'));
+        // a string spanning several chunks forces the stitching pass to relex whole chunks
+        sb.setCharAt(100_000, '"');
+        sb.setCharAt(250_000, '"');
+        ByteVector text = ByteVector.of(sb.toString().getBytes());
+        ShortRunVector.Transient states = ShortRunVector.EMPTY.asTransient();
+        int last = DenseFlexerStates.lexInParallel(text, 0, text.size(), Flexer.START_ID, new DenseFlexerStates.Tables(TestFlexer.instance), states);
+        ShortRunVector ids = states.persistent();
+        assertEquals(text.size(), ids.size());
+        FlexerState state = TestFlexer.instance.start();
+        for (int i = 0; i < text.size(); ++i) {
+            state = TestFlexer.instance.nextState(state, sb.charAt(i));
+            assertSame(state, TestFlexer.instance.stateOf(DenseFlexerStates.idOf(ids.get(i))), "state at " + i);
+        }
+        assertEquals(TestFlexer.instance.idOf(state), last);
+    }
+
+    @Test
+    public void lexemeBoundariesAgreeWithLinearScan() throws Exception {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        freditor.load(randomText(199_999).replace('"', 'x') + "\n\"" + randomText(100_000).replace('"', 'x') + "\"");
+        DenseFlexerStates states = new DenseFlexerStates(freditor);
+        CheckpointedFlexerStates linear = new CheckpointedFlexerStates(freditor);
+        EventQueue.invokeAndWait(() -> {
+            states.refresh();
+            linear.refresh();
+            final int len = freditor.length();
+            for (int k = 0; k < 10_000; ++k) {
+                int i = rng.nextInt(len);
+                assertEquals(linear.startOfLexeme(i), states.startOfLexeme(i), "start of lexeme at " + i);
+                assertEquals(linear.endOfLexeme(i), states.endOfLexeme(i), "end of lexeme at " + i);
+            }
+            assertEquals(200_000, states.startOfLexeme(len - 2));
+            assertEquals(len, states.endOfLexeme(200_000));
+        });
+    }
+
+    @Test
+    public void nestingSearchesAgreeWithLinearScan() throws Exception {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        freditor.load(randomText(200_000).replace('"', 'x'));
+        DenseFlexerStates states = new DenseFlexerStates(freditor);
+        CheckpointedFlexerStates linear = new CheckpointedFlexerStates(freditor);
+        EventQueue.invokeAndWait(() -> {
+            states.refresh();
+            linear.refresh();
+            final int len = freditor.length();
+            for (int k = 0; k < 2_000; ++k) {
+                int start = rng.nextInt(len);
+                int end = Math.min(start + rng.nextInt(5_000), len);
+                int depth = rng.nextInt(3);
+                String range = "[" + start + ", " + end + ") depth " + depth;
+                assertEquals(linear.nestingOf(start, end), states.nestingOf(start, end), range);
+                assertEquals(linear.closingAfter(start, end, depth), states.closingAfter(start, end, depth), range);
+                assertEquals(linear.openingAfter(start, end, depth), states.openingAfter(start, end, depth), range);
+                assertEquals(linear.openingBefore(start, end, depth), states.openingBefore(start, end, depth), range);
+                assertEquals(linear.closingBefore(start, end, depth), states.closingBefore(start, end, depth), range);
+            }
+        });
+    }
+}
@@ -0,0 +1,119 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static freditor.FlexerState.EMPTY;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlexerTest {
+    private static final Flexer flexer = TestFlexer.instance;
+    private static final FlexerState START = flexer.start();
+
+    @Test
+    public void numberingIsDense() {
+        final int n = flexer.numberOfStates();
+        assertEquals(START, flexer.stateOf(Flexer.START_ID));
+        for (int id = 0; id < n; ++id) {
+            assertEquals(id, flexer.idOf(flexer.stateOf(id)));
+        }
+        assertThrows(IllegalArgumentException.class, () -> flexer.idOf(EMPTY));
+    }
+
+    @Test
+    public void transitionTableAgreesWithNextState() {
+        final int[] transitions = flexer.transitions();
+        final int n = flexer.numberOfStates();
+        for (int id = 0; id < n; ++id) {
+            FlexerState state = flexer.stateOf(id);
+            for (char c = 0; c < 256; ++c) {
+                FlexerState expected = flexer.nextState(state, c);
+                int next = transitions[id << 7 | Flexer.column(c)];
+                if (expected == null) {
+                    assertEquals(-1, next);
+                } else {
+                    assertSame(expected, flexer.stateOf(next));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void selfLoopsAgreeWithTransitionTable() {
+        final int[] transitions = flexer.transitions();
+        final long[] selfLoops = flexer.selfLoops();
+        for (int id = 0; id < flexer.numberOfStates(); ++id) {
+            for (int c = 0; c < 256; ++c) {
+                boolean loops = transitions[id << 7 | Flexer.column((char) c)] == id;
+                assertEquals(loops, Flexer.isSelfLoop(selfLoops, id, (byte) c));
+            }
+        }
+        int tail = flexer.idOf(TestFlexer.IDENTIFIER_TAIL);
+        assertTrue(Flexer.isSelfLoop(selfLoops, tail, (byte) 'x'));
+        assertFalse(Flexer.isSelfLoop(selfLoops, tail, (byte) ' '));
+    }
+
+    @Test
+    public void keywordPrefixesAreDistinctStates() {
+        FlexerState i = flexer.nextState(START, 'i');
+        FlexerState in = flexer.nextState(i, 'n');
+        FlexerState x = flexer.nextState(START, 'x');
+        assertNotEquals(flexer.idOf(i), flexer.idOf(x));
+        assertNotEquals(flexer.idOf(in), flexer.idOf(flexer.nextState(x, 'n')));
+        assertSame(TestFlexer.IDENTIFIER_TAIL, flexer.nextState(x, 'n'));
+    }
+
+    private static Flexer minimized(Set<FlexerState> distinguished) {
+        return new Flexer() {
+            @Override
+            protected FlexerState start() {
+                return START;
+            }
+
+            @Override
+            protected Set<FlexerState> distinguishedStates() {
+                return distinguished;
+            }
+        };
+    }
+
+    @Test
+    public void minimizationMergesEquivalentStates() {
+        Flexer minimized = minimized(Collections.emptySet());
+        assertTrue(minimized.numberOfStates() < flexer.numberOfStates());
+
+        FlexerState start = minimized.stateOf(Flexer.START_ID);
+        FlexerState xn = minimized.nextState(minimized.nextState(start, 'x'), 'n');
+        FlexerState i = minimized.nextState(start, 'i');
+        assertSame(xn, minimized.nextState(i, 'f'));
+        assertSame(minimized.nextState(start, 'x'), i);
+        assertTrue(i.isHead);
+        assertFalse(xn.isHead);
+        assertEquals(minimized.idOf(TestFlexer.IDENTIFIER_TAIL), minimized.idOf(xn));
+
+        final int[] transitions = minimized.transitions();
+        for (int id = 0; id < minimized.numberOfStates(); ++id) {
+            for (char c = 0; c < 128; ++c) {
+                FlexerState expected = minimized.nextState(minimized.stateOf(id), c);
+                int next = transitions[id << 7 | Flexer.column(c)];
+                assertEquals(expected == null ? -1 : minimized.idOf(expected), next);
+            }
+        }
+    }
+
+    @Test
+    public void distinguishedStatesAndSentinelsSurviveMinimization() {
+        FlexerState keyword = START.read("if");
+        Flexer minimized = minimized(Collections.singleton(keyword));
+        FlexerState start = minimized.stateOf(Flexer.START_ID);
+        assertSame(START, start);
+        assertSame(keyword, minimized.nextState(minimized.nextState(start, 'i'), 'f'));
+        assertNotSame(keyword, minimized.nextState(minimized.nextState(start, 'x'), 'n'));
+        assertSame(Flexer.OPENING_PAREN, minimized.nextState(start, '('));
+        assertSame(Flexer.CLOSING_PAREN, minimized.nextState(start, ')'));
+        assertSame(Flexer.NEWLINE, minimized.nextState(start, '\n'));
+        assertSame(Flexer.SPACE_HEAD, minimized.nextState(start, ' '));
+    }
+}
@@ -0,0 +1,151 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FreditorTest {
+    private static Freditor freditor(String text) {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null);
+        freditor.load(text);
+        return freditor;
+    }
+
+    @Test
+    public void isolateBraces() {
+        Freditor freditor = freditor("x{y}   z\n{   \n  }  {}\"{}\"");
+        freditor.setCursorTo(3);
+        freditor.isolateBraces();
+        assertEquals("x {\ny\n}\nz\n{\n  }\n{\n}\n\"{}\"", freditor.toString());
+        assertEquals(5, freditor.cursor());
+    }
+
+    @Test
+    public void isolateBracesUndoesAsOne() {
+        String original = "a{b{c}d}e";
+        Freditor freditor = freditor(original);
+        freditor.isolateBraces();
+        assertEquals("a {\nb {\nc\n}\nd\n}\ne", freditor.toString());
+
+        freditor.undo();
+        assertEquals(original, freditor.toString());
+        freditor.redo();
+        assertEquals("a {\nb {\nc\n}\nd\n}\ne", freditor.toString());
+    }
+
+    @Test
+    public void isolatedBracesStayIsolated() {
+        Freditor freditor = freditor("x {\n}\n");
+        freditor.isolateBraces();
+        assertEquals("x {\n}\n", freditor.toString());
+    }
+
+    @Test
+    public void isolatedBracesLeaveHistoryAlone() {
+        Freditor freditor = freditor("x {\n}\n");
+        freditor.replace("x", "y");
+        freditor.undo();
+        assertEquals(0, freditor.undoable());
+        freditor.isolateBraces();
+        assertEquals(0, freditor.undoable());
+        freditor.redo();
+        assertEquals("y {\n}\n", freditor.toString());
+        assertEquals(1, freditor.undoable());
+        freditor.isolateBraces();
+        assertEquals(1, freditor.undoable());
+    }
+
+    private static void assertSameStates(Freditor expected, Freditor actual) {
+        assertEquals(expected.toString(), actual.toString());
+        for (int i = 0; i <= expected.length(); ++i) {
+            assertSame(expected.stateAt(i), actual.stateAt(i), "state at " + i);
+        }
+    }
+
+    @Test
+    public void batchedEditsCatchUpOnCommit() {
+        Freditor freditor = freditor("int x = \"abc\" / y\n/ comment\nwhile (x)\n");
+        freditor.beginBatch();
+        freditor.insertAt(20, "\"");
+        freditor.deleteRange(2, 5);
+        freditor.insertAt(0, "if ");
+        freditor.beginBatch();
+        freditor.deleteRightOf(freditor.length() - 2);
+        freditor.commitBatch();
+        freditor.insertAt(freditor.length(), "(y)");
+        freditor.commitBatch();
+        assertSameStates(freditor(freditor.toString()), freditor);
+        assertThrows(IllegalStateException.class, freditor::commitBatch);
+    }
+
+    @Test
+    public void statesInsideBatchAreUpToDate() {
+        Freditor freditor = freditor("x / y\nz");
+        freditor.beginBatch();
+        freditor.insertAt(3, "/");
+        assertSameStates(freditor("x // y\nz"), freditor);
+        freditor.deleteLeftOf(4);
+        freditor.insertAt(0, "\"");
+        freditor.commitBatch();
+        assertSameStates(freditor("\"x / y\nz"), freditor);
+    }
+
+    @Test
+    public void renameRelexesEveryOccurrence() {
+        String original = "x = \"x\" / x\nxx / x\n";
+        Freditor freditor = freditor(original);
+        freditor.rename("x", "if", 0, 5, 10, 12, 13, 17);
+        assertSameStates(freditor("if = \"if\" / if\nifif / if\n"), freditor);
+        freditor.undo();
+        assertSameStates(freditor(original), freditor);
+    }
+
+    @Test
+    public void replaceAgreesWithReplaceAll() {
+        String original = "int x = \"abc\" / y\nwhile (xx) x = y\n";
+        String[][] cases = {{"x+", "if"}, {"(\\w)(\\w)", "$2$1"}, {"y*", "-"}, {"\"", "/"}, {"z", "w"}};
+        for (String[] regexAndReplacement : cases) {
+            Freditor freditor = freditor(original);
+            freditor.setRowAndColumn(1, 3);
+            freditor.replace(regexAndReplacement[0], regexAndReplacement[1]);
+            assertSameStates(freditor(original.replaceAll(regexAndReplacement[0], regexAndReplacement[1])), freditor);
+            assertEquals(1, freditor.row());
+            freditor.undo();
+            assertSameStates(freditor(original), freditor);
+        }
+    }
+
+    @Test
+    public void replaceWithManyMatchesKeepsEarlierUndoSteps() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 200_000) {
+            sb.append("int x = y / z\n");
+        }
+        String original = sb.toString();
+        Freditor freditor = freditor(original);
+        for (int step = 0; step < 50; ++step) {
+            freditor.replace("^", "a");
+        }
+        freditor.replace("x*", "-");
+        for (int step = 0; step < 51; ++step) {
+            freditor.undo();
+        }
+        assertSameStates(freditor(original), freditor);
+    }
+
+    @Test
+    public void undoBudgetIsConfigurable() {
+        Freditor freditor = new Freditor(TestFlexer.instance, Indenter.instance, null, 1000);
+        assertEquals(1000, freditor.undoBudget());
+        freditor.load("x");
+        for (int step = 0; step < 100; ++step) {
+            freditor.replace("^", "a");
+        }
+        int undoable = freditor.undoable();
+        assertTrue(undoable > 1 && undoable < 100);
+
+        freditor.setUndoBudget(0);
+        assertEquals(1, freditor.undoable());
+        assertThrows(IllegalArgumentException.class, () -> freditor.setUndoBudget(-1));
+    }
+}
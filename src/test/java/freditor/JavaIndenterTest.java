@@ -0,0 +1,70 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JavaIndenterTest {
+    private static final Random rng = new Random(System.nanoTime() / 1_000_000_000L);
+
+    private static final String ALPHABET = "x ((  ))\n\n  ";
+
+    private static Freditor randomFreditor(String prefix) {
+        StringBuilder sb = new StringBuilder(prefix);
+        for (int i = 0; i < 20_000; ++i) {
+            sb.append(ALPHABET.charAt(rng.nextInt(ALPHABET.length())));
+        }
+        Freditor freditor = new Freditor(TestFlexer.instance, JavaIndenter.instance, null);
+        freditor.load(sb.toString());
+        return freditor;
+    }
+
+    private static void assertRangesAgree(Freditor freditor) {
+        final int[] all = JavaIndenter.instance.corrections(freditor);
+        assertEquals(freditor.rows(), all.length);
+        for (int k = 0; k < 200; ++k) {
+            int firstRow = rng.nextInt(all.length);
+            int endRow = Math.min(firstRow + rng.nextInt(10), all.length);
+            int[] expected = Arrays.copyOfRange(all, firstRow, endRow);
+            assertArrayEquals(expected, JavaIndenter.instance.corrections(freditor, firstRow, endRow), "rows " + firstRow + " to " + endRow);
+        }
+    }
+
+    @Test
+    public void rangeCorrectionsAgreeWithAllCorrections() {
+        assertRangesAgree(randomFreditor("(\n"));
+    }
+
+    @Test
+    public void rangeCorrectionsAgreeAfterExcessClosers() {
+        assertRangesAgree(randomFreditor("x\n)\n)\n"));
+    }
+
+    @Test
+    public void enterIndentsTheNewRow() {
+        Freditor freditor = new Freditor(TestFlexer.instance, JavaIndenter.instance, null);
+        freditor.load("(\nx\n)");
+        freditor.setCursorTo(1);
+        freditor.onEnter('(');
+        assertEquals("(\n    \nx\n)", freditor.toString());
+        assertEquals(6, freditor.cursor());
+    }
+
+    @Test
+    public void indentCorrectsAllRowsAtOnceAndUndoesAsOne() {
+        Freditor freditor = new Freditor(TestFlexer.instance, JavaIndenter.instance, null);
+        String original = "x\n(\nx\n      (x\n  x)\n )\nx";
+        freditor.load(original);
+        freditor.setCursorTo(1);
+        freditor.onEnter('x');
+        freditor.indent();
+        assertEquals("x\n\n(\n    x\n    (x\n        x)\n)\nx", freditor.toString());
+        assertArrayEquals(new int[8], JavaIndenter.instance.corrections(freditor));
+
+        freditor.undo();
+        assertEquals(original, freditor.toString());
+    }
+}
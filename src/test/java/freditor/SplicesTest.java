@@ -0,0 +1,36 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SplicesTest {
+    @Test
+    public void adjacentRangesMerge() {
+        Splices splices = new Splices();
+        StringBuilder caller = new StringBuilder("a");
+        splices.add(0, 1, caller);
+        for (int i = 1; i < 1000; ++i) {
+            splices.add(i, i + 1, "b");
+        }
+        splices.add(2000, 2000, "c");
+        assertEquals(2, splices.count);
+        assertEquals(1000, splices.ends[0]);
+        assertEquals(1000, splices.replacements[0].length());
+        assertEquals("a", caller.toString());
+        assertEquals("c", splices.replacements[1].toString());
+        assertThrows(IllegalArgumentException.class, () -> splices.add(1999, 2001, ""));
+    }
+
+    @Test
+    public void positionsMoveWithTheReplacements() {
+        Splices splices = new Splices();
+        splices.add(2, 4, "xyz");
+        splices.add(6, 6, "\n");
+        assertEquals(1, splices.map(1));
+        assertEquals(2, splices.map(3));
+        assertEquals(5, splices.map(4));
+        assertEquals(7, splices.map(6));
+        assertEquals(9, splices.map(7));
+    }
+}
@@ -0,0 +1,38 @@
+package freditor;
+
+import static freditor.FlexerState.EMPTY;
+import static freditor.FlexerState.THIS;
+
+/**
+ * Strings and line comments, which can span rows, plus a few keywords and braces.
+ */
+final class TestFlexer extends Flexer {
+    static final TestFlexer instance = new TestFlexer();
+
+    private static final FlexerState STRING_END = EMPTY.tail();
+    private static final FlexerState STRING_TAIL = new FlexerState('"', STRING_END).setDefault(THIS);
+    private static final FlexerState STRING_HEAD = STRING_TAIL.head();
+    private static final FlexerState COMMENT_TAIL = new FlexerState('\n', null).setDefault(THIS);
+    private static final FlexerState SLASH = new FlexerState('/', COMMENT_TAIL).head();
+    static final FlexerState IDENTIFIER_TAIL = new FlexerState("09AZ__az", THIS);
+    private static final FlexerState IDENTIFIER_HEAD = IDENTIFIER_TAIL.head();
+
+    private static final FlexerState START = new FlexerStateBuilder()
+            .set('(', OPENING_PAREN)
+            .set(')', CLOSING_PAREN)
+            .set('{', OPENING_BRACE)
+            .set('}', CLOSING_BRACE)
+            .set('\n', NEWLINE)
+            .set(' ', SPACE_HEAD)
+            .set('"', STRING_HEAD)
+            .set('/', SLASH)
+            .set("AZ__az", IDENTIFIER_HEAD)
+            .build()
+            .verbatim(IDENTIFIER_TAIL, "if", "int", "while")
+            .setDefault(ERROR);
+
+    @Override
+    protected FlexerState start() {
+        return START;
+    }
+}
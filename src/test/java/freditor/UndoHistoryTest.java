@@ -0,0 +1,126 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UndoHistoryTest {
+    private static byte[] bytes(String s) {
+        return CharZipper.bytesOf(s);
+    }
+
+    private static void assertEdit(int offset, String removed, String inserted, UndoHistory.Edit edit) {
+        assertEquals(offset, edit.offset);
+        assertArrayEquals(bytes(removed), edit.removed);
+        assertArrayEquals(bytes(inserted), edit.inserted);
+    }
+
+    @Test
+    public void nothingIsRecordedBeforeFirstCommit() {
+        UndoHistory history = new UndoHistory();
+        history.recordInsertion(0, bytes("hello"));
+        assertEquals(0, history.bytes());
+        assertNull(history.undo());
+    }
+
+    @Test
+    public void editingAfterUndoingEverythingDiscardsFuture() {
+        UndoHistory history = new UndoHistory();
+        history.commit(0, 0, -1);
+        history.recordInsertion(0, bytes("a"));
+        history.undo();
+        assertTrue(history.isRecording());
+
+        history.recordRemoval(0, bytes("xyz"));
+        assertNull(history.redo());
+        assertFalse(history.isRecording());
+        assertEquals(0, history.bytes());
+    }
+
+    @Test
+    public void typingCoalesces() {
+        UndoHistory history = new UndoHistory();
+        history.commit(0, 0, -1);
+        history.recordInsertion(3, bytes("a"));
+        history.recordInsertion(4, bytes("b"));
+        history.recordInsertion(5, bytes("cd"));
+        history.recordInsertion(0, bytes("x"));
+
+        UndoHistory.Group group = history.undo();
+        assertEquals(2, group.edits.size());
+        assertEdit(3, "", "abcd", group.edits.get(0));
+        assertEdit(0, "", "x", group.edits.get(1));
+    }
+
+    @Test
+    public void deletingCoalesces() {
+        UndoHistory history = new UndoHistory();
+        history.commit(0, 0, -1);
+        history.recordRemoval(9, bytes("c"));
+        history.recordRemoval(8, bytes("b"));
+        history.recordRemoval(7, bytes("a"));
+        history.recordRemoval(7, bytes("d"));
+        history.recordRemoval(7, bytes("e"));
+
+        UndoHistory.Group group = history.undo();
+        assertEquals(1, group.edits.size());
+        assertEdit(7, "abcde", "", group.edits.get(0));
+    }
+
+    @Test
+    public void editingDiscardsFuture() {
+        UndoHistory history = new UndoHistory();
+        history.commit(0, 0, -1);
+        history.recordInsertion(0, bytes("a"));
+        history.commit(1, 1, -1);
+        history.recordInsertion(1, bytes("b"));
+        history.undo();
+        assertEquals(1, history.redoable());
+
+        history.recordInsertion(1, bytes("c"));
+        assertEquals(0, history.redoable());
+        assertNull(history.redo());
+    }
+
+    @Test
+    public void uncommitJoinsPreviousGroup() {
+        UndoHistory history = new UndoHistory();
+        history.commit(0, 0, -1);
+        history.recordInsertion(0, bytes("a"));
+        history.commit(1, 1, -1);
+        history.recordRemoval(0, bytes("a"));
+        history.uncommit();
+        assertEquals(1, history.undoable());
+
+        UndoHistory.Group group = history.undo();
+        assertEquals(0, group.cursor);
+        assertEquals(2, group.edits.size());
+    }
+
+    @Test
+    public void oldestGroupsAreEvicted() {
+        UndoHistory history = new UndoHistory();
+        history.setBudget(1000);
+        for (int i = 0; i < 100; ++i) {
+            history.commit(i, i, -1);
+            history.recordInsertion(i, bytes("0123456789"));
+            assertTrue(history.bytes() <= 1000);
+        }
+        int undoable = history.undoable();
+        assertTrue(undoable > 1 && undoable < 100);
+        assertEquals(99, history.undo().cursor);
+
+        history.setBudget(0);
+        assertEquals(1, history.undoable() + history.redoable());
+    }
+
+    @Test
+    public void newestGroupSurvivesBudget() {
+        UndoHistory history = new UndoHistory();
+        history.setBudget(10);
+        history.commit(0, 0, -1);
+        history.recordInsertion(0, bytes("more than ten bytes"));
+        assertEquals(1, history.undoable());
+        assertEdit(0, "", "more than ten bytes", history.undo().edits.get(0));
+    }
+}
@@ -2,7 +2,10 @@ package freditor.persistent;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.Spliterator;
 
 import static freditor.Maths.atLeastZero;
 import static org.junit.jupiter.api.Assertions.*;
@@ -298,4 +301,434 @@ public class ByteVectorTest {
         hashing(32799);
         hashing(32800);
     }
+
+    private static void transientPush(int initialSize, int finalSize) {
+        byte[] bytes = arrayOfSize(finalSize);
+        ByteVector v = ByteVector.of(bytes, initialSize);
+        ByteVector.Transient t = v.asTransient();
+        for (int i = initialSize; i < finalSize; ++i) {
+            t.push(bytes[i]);
+        }
+        ByteVector w = t.persistent();
+        assertEquals(initialSize, v.size());
+        assertEquals(ByteVector.of(bytes, initialSize), v);
+        assertEquals(finalSize, w.size());
+        assertArrayEquals(bytes, w.toArray());
+    }
+
+    @Test
+    public void transientPushLevel1() {
+        transientPush(0, 32);
+        transientPush(0, 33);
+        transientPush(31, 64);
+    }
+
+    @Test
+    public void transientPushLevel2() {
+        transientPush(0, 32 * 32 + 33);
+        transientPush(33, 32 * 32 + 32);
+        transientPush(100, 200);
+    }
+
+    @Test
+    public void transientPushLevel3() {
+        transientPush(0, 32 * 32 * 32 + 33);
+        transientPush(32 * 32 + 1, 32 * 32 * 32 + 100);
+    }
+
+    @Test
+    public void transientPopAndPush() {
+        final int MAX_SIZE = 1100;
+        byte[] bytes = arrayOfSize(MAX_SIZE);
+        ByteVector v = ByteVector.of(bytes);
+        ByteVector.Transient t = v.asTransient();
+        for (int size = MAX_SIZE; size > 0; --size) {
+            assertEquals(bytes[size - 1], t.top());
+            t.pop();
+        }
+        assertTrue(t.isEmpty());
+        for (int size = 0; size < MAX_SIZE; ++size) {
+            t.push(bytes[size]);
+        }
+        assertEquals(v, t.persistent());
+        assertArrayEquals(bytes, v.toArray());
+    }
+
+    @Test
+    public void transientAfterPersistent() {
+        ByteVector.Transient t = ByteVector.EMPTY.asTransient().push((byte) 11);
+        assertEquals(ByteVector.of((byte) 11), t.persistent());
+        assertThrows(IllegalStateException.class, () -> t.push((byte) 13));
+        assertThrows(IllegalStateException.class, t::persistent);
+    }
+
+    @Test
+    public void persistentBranchesFromTransient() {
+        byte[] bytes = arrayOfSize(100);
+        ByteVector.Transient t = ByteVector.EMPTY.asTransient();
+        for (byte b : bytes) {
+            t.push(b);
+        }
+        ByteVector v = t.persistent();
+        ByteVector w = v.push((byte) 11);
+        ByteVector x = v.push((byte) 13);
+        assertArrayEquals(bytes, v.toArray());
+        assertEquals(11, w.top());
+        assertEquals(13, x.top());
+        assertEquals(v, w.pop());
+        assertEquals(v, x.pop());
+    }
+
+    private static void concat(int leftSize, int rightSize) {
+        byte[] bytes = arrayOfSize(leftSize + rightSize);
+        ByteVector left = ByteVector.of(bytes, leftSize);
+        ByteVector right = ByteVector.of(Arrays.copyOfRange(bytes, leftSize, bytes.length));
+        ByteVector v = left.concat(right);
+        assertEquals(bytes.length, v.size());
+        assertArrayEquals(bytes, v.toArray());
+        for (int i = 0; i < bytes.length; ++i) {
+            assertEquals(bytes[i], v.byteAt(i));
+        }
+    }
+
+    @Test
+    public void concatLevel1() {
+        concat(0, 1);
+        concat(1, 0);
+        concat(1, 1);
+        concat(31, 33);
+        concat(32, 32);
+        concat(33, 31);
+        concat(50, 70);
+    }
+
+    @Test
+    public void concatLevel2() {
+        concat(1, 32 * 32 + 33);
+        concat(32 * 32 + 33, 1);
+        concat(100, 1000);
+        concat(1000, 100);
+        concat(1057, 1057);
+    }
+
+    @Test
+    public void concatLevel3() {
+        concat(7, 32 * 32 * 32 + 33);
+        concat(32 * 32 * 32 + 33, 7);
+        concat(32 * 32 * 32 + 33, 32 * 32 * 32 + 33);
+        concat(12345, 54321);
+    }
+
+    @Test
+    public void dropEverything() {
+        final int MAX_SIZE = 1100;
+        byte[] bytes = arrayOfSize(MAX_SIZE);
+        ByteVector v = ByteVector.of(bytes);
+        for (int n = 0; n <= MAX_SIZE; ++n) {
+            ByteVector d = v.drop(n);
+            assertEquals(MAX_SIZE - n, d.size());
+            assertArrayEquals(Arrays.copyOfRange(bytes, n, MAX_SIZE), d.toArray());
+        }
+    }
+
+    @Test
+    public void splitAndConcatRandomly() {
+        byte[] bytes = arrayOfSize(40000);
+        ByteVector v = ByteVector.of(bytes);
+        for (int i = 0; i < 1000; ++i) {
+            int n = rng.nextInt(bytes.length + 1);
+            ByteVector left = v.take(n);
+            ByteVector right = v.drop(n);
+            assertEquals(n, left.size());
+            assertEquals(bytes.length - n, right.size());
+            v = left.concat(right);
+            assertEquals(bytes.length, v.size());
+        }
+        assertArrayEquals(bytes, v.toArray());
+        for (int i = 0; i < bytes.length; ++i) {
+            assertEquals(bytes[i], v.byteAt(i));
+        }
+    }
+
+    @Test
+    public void editRelaxedVectorRandomly() {
+        StringBuilder expected = new StringBuilder();
+        ByteVector v = ByteVector.EMPTY;
+        for (int i = 0; i < 2000; ++i) {
+            int n = rng.nextInt(v.size() + 1);
+            byte[] bytes = arrayOfSize(rng.nextInt(100));
+            switch (rng.nextInt(4)) {
+                case 0:
+                    v = v.take(n).concat(ByteVector.of(bytes)).concat(v.drop(n));
+                    expected.insert(n, new String(bytes, StandardCharsets.ISO_8859_1));
+                    break;
+                case 1:
+                    int m = n + rng.nextInt(v.size() - n + 1);
+                    v = v.take(n).concat(v.drop(m));
+                    expected.delete(n, m);
+                    break;
+                case 2:
+                    ByteVector.Transient t = v.asTransient();
+                    for (byte b : bytes) {
+                        t.push(b);
+                    }
+                    v = t.persistent();
+                    expected.append(new String(bytes, StandardCharsets.ISO_8859_1));
+                    break;
+                case 3:
+                    for (int k = Math.min(bytes.length, v.size()); k > 0; --k) {
+                        v = v.pop();
+                    }
+                    expected.setLength(v.size());
+                    break;
+            }
+            assertEquals(expected.length(), v.size());
+        }
+        assertEquals(expected.toString(), v.toString());
+        for (int i = 0; i < v.size(); ++i) {
+            assertEquals(expected.charAt(i), v.byteAt(i));
+        }
+    }
+
+    private static void pushAll(int initialSize, int length) {
+        byte[] bytes = arrayOfSize(initialSize + length);
+        ByteVector v = ByteVector.of(bytes, initialSize);
+        ByteVector w = v.pushAll(bytes, initialSize, length);
+        assertEquals(initialSize, v.size());
+        assertArrayEquals(bytes, w.toArray());
+
+        ByteVector x = v.pushAll(ByteVector.of(Arrays.copyOfRange(bytes, initialSize, bytes.length)));
+        assertArrayEquals(bytes, x.toArray());
+    }
+
+    @Test
+    public void pushAllLevel1() {
+        pushAll(0, 0);
+        pushAll(0, 1);
+        pushAll(0, 32);
+        pushAll(5, 27);
+        pushAll(5, 28);
+        pushAll(31, 34);
+    }
+
+    @Test
+    public void pushAllLevel2() {
+        pushAll(0, 32 * 32 + 33);
+        pushAll(17, 1000);
+        pushAll(1000, 17);
+        pushAll(1057, 1057);
+    }
+
+    @Test
+    public void pushAllLevel3() {
+        pushAll(3, 32 * 32 * 32 + 33);
+        pushAll(32 * 32 * 32 + 33, 3);
+        pushAll(12345, 54321);
+    }
+
+    @Test
+    public void dropLastIsOptimizedPopChain() {
+        final int SIZE = 1100;
+        byte[] bytes = arrayOfSize(SIZE);
+        ByteVector v = ByteVector.of(bytes);
+        ByteVector p = v;
+        for (int n = 0; n <= SIZE; ++n) {
+            assertEquals(p, v.dropLast(n));
+            if (n < SIZE) {
+                p = p.pop();
+            }
+        }
+    }
+
+    private static ByteVector relaxedVector(byte[] bytes) {
+        // concatenating odd pieces yields partially filled leaves
+        ByteVector v = ByteVector.EMPTY;
+        for (int i = 0; i < bytes.length; ) {
+            int n = Math.min(1 + rng.nextInt(100), bytes.length - i);
+            v = v.concat(ByteVector.of(Arrays.copyOfRange(bytes, i, i += n)));
+        }
+        return v;
+    }
+
+    @Test
+    public void chunksForward() {
+        byte[] bytes = arrayOfSize(5000);
+        ByteVector v = relaxedVector(bytes);
+        for (int k = 0; k < 100; ++k) {
+            int start = rng.nextInt(bytes.length + 1);
+            int end = start + rng.nextInt(bytes.length - start + 1);
+            StringBuilder visited = new StringBuilder();
+            v.forEachChunk(start, end, (chunk, from, to, origin) -> {
+                assertEquals(start + visited.length(), origin + from);
+                visited.append(new String(chunk, from, to - from, StandardCharsets.ISO_8859_1));
+            });
+            assertEquals(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1), visited.toString());
+        }
+    }
+
+    @Test
+    public void chunksReversed() {
+        byte[] bytes = arrayOfSize(5000);
+        ByteVector v = relaxedVector(bytes);
+        for (int k = 0; k < 100; ++k) {
+            int start = rng.nextInt(bytes.length + 1);
+            int end = start + rng.nextInt(bytes.length - start + 1);
+            StringBuilder visited = new StringBuilder();
+            v.forEachChunkReversed(start, end, (chunk, from, to, origin) -> {
+                assertEquals(end - visited.length(), origin + to);
+                visited.insert(0, new String(chunk, from, to - from, StandardCharsets.ISO_8859_1));
+            });
+            assertEquals(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1), visited.toString());
+        }
+    }
+
+    @Test
+    public void copyRangeIntoArray() {
+        byte[] bytes = arrayOfSize(3000);
+        ByteVector v = relaxedVector(bytes);
+        byte[] copy = new byte[1000];
+        v.copyIntoArray(1234, 2234, copy, 0);
+        assertArrayEquals(Arrays.copyOfRange(bytes, 1234, 2234), copy);
+    }
+
+    @Test
+    public void sequentialStream() {
+        byte[] bytes = arrayOfSize(5000);
+        ByteVector v = relaxedVector(bytes);
+        byte[] streamed = new byte[bytes.length];
+        int[] index = {0};
+        v.stream().forEach(b -> streamed[index[0]++] = (byte) b);
+        assertArrayEquals(bytes, streamed);
+    }
+
+    @Test
+    public void parallelStream() {
+        byte[] bytes = arrayOfSize(100000);
+        ByteVector v = relaxedVector(bytes);
+        long expected = 0;
+        for (byte b : bytes) {
+            expected += b;
+        }
+        assertEquals(expected, v.stream().parallel().asLongStream().sum());
+        assertEquals(bytes.length, v.stream().parallel().count());
+        assertArrayEquals(bytes, toBytes(v.stream().parallel().toArray()));
+    }
+
+    private static byte[] toBytes(int[] ints) {
+        byte[] bytes = new byte[ints.length];
+        for (int i = 0; i < ints.length; ++i) {
+            bytes[i] = (byte) ints[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void spliteratorSplitsAtLeafBoundaries() {
+        ByteVector v = relaxedVector(arrayOfSize(10000));
+        Spliterator.OfInt suffix = v.spliterator();
+        Spliterator.OfInt prefix = suffix.trySplit();
+        assertNotNull(prefix);
+        assertEquals(v.size(), prefix.estimateSize() + suffix.estimateSize());
+
+        int split = (int) prefix.estimateSize();
+        boolean[] aligned = {false};
+        v.forEachChunk((chunk, from, to, origin) -> aligned[0] |= origin + from == split);
+        assertTrue(aligned[0]);
+    }
+
+    private static byte[] linesOfRandomLength(int size) {
+        byte[] bytes = arrayOfSize(size);
+        for (int i = 0; i < size; i += 1 + rng.nextInt(80)) {
+            bytes[i] = '\n';
+        }
+        return bytes;
+    }
+
+    private static void checkNewlines(byte[] bytes, ByteVector v) {
+        int newlines = 0;
+        for (int i = 0; i < bytes.length; ++i) {
+            assertEquals(newlines, v.newlinesBefore(i));
+            if (bytes[i] == '\n') {
+                assertEquals(i, v.indexOfNewline(newlines));
+                ++newlines;
+            }
+        }
+        assertEquals(newlines, v.newlinesBefore(bytes.length));
+        assertEquals(newlines, v.newlines());
+        assertEquals(-1, v.indexOfNewline(newlines));
+    }
+
+    @Test
+    public void newlinesOfDenseVector() {
+        byte[] bytes = linesOfRandomLength(40000);
+        checkNewlines(bytes, ByteVector.of(bytes));
+    }
+
+    @Test
+    public void newlinesOfRelaxedVector() {
+        byte[] bytes = linesOfRandomLength(40000);
+        checkNewlines(bytes, relaxedVector(bytes));
+    }
+
+    @Test
+    public void newlinesAfterSplitAndPush() {
+        byte[] bytes = linesOfRandomLength(5000);
+        ByteVector v = relaxedVector(bytes);
+        for (int k = 0; k < 20; ++k) {
+            int n = rng.nextInt(bytes.length + 1);
+            checkNewlines(Arrays.copyOfRange(bytes, n, bytes.length), v.drop(n));
+            checkNewlines(Arrays.copyOf(bytes, n), v.take(n));
+        }
+
+        ByteVector.Transient t = v.take(1000).asTransient();
+        t.pushAll(bytes, 1000, 4000);
+        checkNewlines(bytes, t.persistent());
+    }
+
+    private static int naiveIndexOf(byte[] bytes, byte x, int from) {
+        for (int i = Math.max(from, 0); i < bytes.length; ++i) {
+            if (bytes[i] == x) return i;
+        }
+        return -1;
+    }
+
+    private static int naiveLastIndexOf(byte[] bytes, byte x, int from) {
+        for (int i = Math.min(from, bytes.length - 1); i >= 0; --i) {
+            if (bytes[i] == x) return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void searchBytes() {
+        byte[] bytes = linesOfRandomLength(10000);
+        ByteVector v = relaxedVector(bytes);
+        for (byte x : new byte[]{'\n', 'A', 'Z', '#'}) {
+            int count = 0;
+            for (byte b : bytes) {
+                if (b == x) {
+                    ++count;
+                }
+            }
+            assertEquals(count, v.countOf(x));
+            for (int k = 0; k < 200; ++k) {
+                int from = rng.nextInt(bytes.length + 2) - 1;
+                assertEquals(naiveIndexOf(bytes, x, from), v.indexOf(x, from));
+                assertEquals(naiveLastIndexOf(bytes, x, from), v.lastIndexOf(x, from));
+            }
+            assertEquals(naiveIndexOf(bytes, x, 0), v.indexOf(x));
+            assertEquals(naiveLastIndexOf(bytes, x, bytes.length), v.lastIndexOf(x));
+        }
+    }
+
+    @Test
+    public void searchEveryPosition() {
+        byte[] bytes = arrayOfSize(100);
+        bytes[3] = bytes[40] = bytes[71] = '#';
+        ByteVector v = ByteVector.of(bytes);
+        for (int from = -1; from <= 101; ++from) {
+            assertEquals(naiveIndexOf(bytes, (byte) '#', from), v.indexOf((byte) '#', from));
+            assertEquals(naiveLastIndexOf(bytes, (byte) '#', from), v.lastIndexOf((byte) '#', from));
+        }
+    }
 }
@@ -0,0 +1,241 @@
+package freditor.persistent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShortRunVectorTest {
+    private static final Random rng = new Random(System.nanoTime() / 1_000_000_000L);
+
+    private static List<Short> randomList(int size) {
+        List<Short> list = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            list.add((short) rng.nextInt(65536));
+        }
+        return list;
+    }
+
+    private static ShortRunVector vectorOf(List<Short> list) {
+        ShortRunVector.Transient t = ShortRunVector.EMPTY.asTransient();
+        for (short x : list) {
+            t.push(x);
+        }
+        return t.persistent();
+    }
+
+    private static void assertContents(List<Short> expected, ShortRunVector v) {
+        assertEquals(expected.size(), v.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals((short) expected.get(i), v.get(i));
+        }
+    }
+
+    @Test
+    public void emptyVector() {
+        assertTrue(ShortRunVector.EMPTY.isEmpty());
+        assertEquals(0, ShortRunVector.EMPTY.size());
+        assertThrows(IndexOutOfBoundsException.class, () -> ShortRunVector.EMPTY.get(0));
+    }
+
+    @Test
+    public void pushAndGet() {
+        for (int size : new int[]{1, 32, 33, 32 * 32 + 32, 32 * 32 + 33, 32 * 32 * 32 + 33}) {
+            List<Short> list = randomList(size);
+            assertContents(list, vectorOf(list));
+        }
+        assertEquals("[1, -1, 32767]", ShortRunVector.of((short) 1, (short) -1, Short.MAX_VALUE).toString());
+    }
+
+    @Test
+    public void takeAndDrop() {
+        List<Short> list = randomList(5000);
+        ShortRunVector v = vectorOf(list);
+        for (int n = 0; n <= list.size(); n += 1 + rng.nextInt(100)) {
+            assertContents(list.subList(0, n), v.take(n));
+            assertContents(list.subList(n, list.size()), v.drop(n));
+        }
+        assertContents(list, v);
+    }
+
+    @Test
+    public void editRandomly() {
+        List<Short> expected = new ArrayList<>();
+        ShortRunVector v = ShortRunVector.EMPTY;
+        for (int k = 0; k < 2000; ++k) {
+            int n = rng.nextInt(v.size() + 1);
+            if (rng.nextBoolean()) {
+                List<Short> inserted = randomList(rng.nextInt(100));
+                v = v.take(n).concat(vectorOf(inserted)).concat(v.drop(n));
+                expected.addAll(n, inserted);
+            } else {
+                int m = n + rng.nextInt(v.size() - n + 1);
+                v = v.take(n).concat(v.drop(m));
+                expected.subList(n, m).clear();
+            }
+            assertEquals(expected.size(), v.size());
+        }
+        assertContents(expected, v);
+    }
+
+    @Test
+    public void pushingOntoTakenPrefixLeavesOriginalIntact() {
+        List<Short> list = randomList(1000);
+        ShortRunVector v = vectorOf(list);
+        for (int n : new int[]{10, 500, 999}) {
+            ShortRunVector.Transient t = v.take(n).asTransient();
+            for (int i = 0; i < 100; ++i) {
+                t.push((short) -1);
+            }
+            assertEquals(n + 100, t.persistent().size());
+        }
+        assertContents(list, v);
+    }
+
+    @Test
+    public void pushRuns() {
+        List<Short> expected = new ArrayList<>();
+        ShortRunVector.Transient t = ShortRunVector.of((short) 7).asTransient();
+        expected.add((short) 7);
+        for (int k = 0; k < 200; ++k) {
+            short x = (short) rng.nextInt(65536);
+            int count = rng.nextInt(100);
+            t.pushRun(x, count);
+            expected.addAll(Collections.nCopies(count, x));
+        }
+        assertContents(expected, t.persistent());
+    }
+
+    private static List<Short> runnyList(int size) {
+        List<Short> list = new ArrayList<>(size);
+        while (list.size() < size) {
+            short x = (short) (rng.nextInt(3) - 1);
+            int n = Math.min(1 + rng.nextInt(rng.nextBoolean() ? 5 : 100_000), size - list.size());
+            list.addAll(Collections.nCopies(n, x));
+        }
+        return list;
+    }
+
+    @Test
+    public void editRunsRandomly() {
+        List<Short> expected = new ArrayList<>(runnyList(300_000));
+        ShortRunVector v = vectorOf(expected);
+        for (int k = 0; k < 500; ++k) {
+            int n = rng.nextInt(v.size() + 1);
+            if (rng.nextBoolean()) {
+                List<Short> inserted = runnyList(rng.nextInt(1000));
+                v = v.take(n).concat(vectorOf(inserted)).concat(v.drop(n));
+                expected.addAll(n, inserted);
+            } else {
+                int m = n + rng.nextInt(Math.min(v.size() - n, 1000) + 1);
+                v = v.take(n).concat(v.drop(m));
+                expected.subList(n, m).clear();
+            }
+            assertEquals(expected.size(), v.size());
+        }
+        assertContents(expected, v);
+        for (int k = 0; k < 1000; ++k) {
+            int i = rng.nextInt(expected.size());
+            assertEquals((short) expected.get(i), v.get(i));
+        }
+    }
+
+    @Test
+    public void rankAndSelectNegatives() {
+        List<Short> list = runnyList(100_000);
+        ShortRunVector v = vectorOf(list).take(70_000).concat(vectorOf(list).drop(70_000));
+        List<Integer> negatives = new ArrayList<>();
+        for (int i = 0; i < list.size(); ++i) {
+            if (list.get(i) < 0) {
+                negatives.add(i);
+            }
+        }
+        for (int k = 0; k < negatives.size(); k += 1 + rng.nextInt(100)) {
+            int index = negatives.get(k);
+            assertEquals(index, v.indexOfNegative(k));
+            assertEquals(k, v.negativesBefore(index));
+            assertEquals(k + 1, v.negativesBefore(index + 1));
+        }
+        assertEquals(-1, v.indexOfNegative(negatives.size()));
+        assertEquals(negatives.size(), v.negativesBefore(list.size()));
+        assertEquals(0, v.negativesBefore(0));
+    }
+
+    @Test
+    public void searchPrefixSums() {
+        byte[] weights = new byte[1 << 16];
+        weights[1] = 1;
+        weights[2] = -1;
+        weights[-3 & 0xffff] = -2;
+        final short[] values = {0, 1, 2, -3};
+        List<Short> list = new ArrayList<>();
+        while (list.size() < 20_000) {
+            short x = values[rng.nextInt(values.length)];
+            list.addAll(Collections.nCopies(1 + rng.nextInt(rng.nextBoolean() ? 3 : 500), x));
+        }
+        ShortRunVector.Transient t = ShortRunVector.empty(weights).asTransient();
+        for (short x : list) {
+            t.push(x);
+        }
+        ShortRunVector whole = t.persistent();
+        ShortRunVector v = whole.take(7_000).concat(whole.drop(7_000).take(5_000)).concat(whole.drop(12_000));
+        final int size = list.size();
+        int[] prefix = new int[size + 1];
+        for (int i = 0; i < size; ++i) {
+            prefix[i + 1] = prefix[i] + weights[list.get(i) & 0xffff];
+        }
+        for (int i = 0; i <= size; ++i) {
+            assertEquals(prefix[i], v.weightBefore(i));
+        }
+        for (int q = 0; q < 500; ++q) {
+            int from = rng.nextInt(size + 1);
+            int weight = prefix[from] + rng.nextInt(41) - 20;
+            assertEquals(naiveIndexOf(prefix, from, weight, 1), v.indexOfWeightBelow(from, weight));
+            assertEquals(naiveIndexOf(prefix, from, weight, -1), v.indexOfWeightAbove(from, weight));
+            assertEquals(naiveLastIndexOf(prefix, from, weight, 1), v.lastIndexOfWeightBelow(from, weight));
+            assertEquals(naiveLastIndexOf(prefix, from, weight, -1), v.lastIndexOfWeightAbove(from, weight));
+        }
+        assertThrows(IllegalArgumentException.class, () -> v.concat(ShortRunVector.of((short) 1)));
+    }
+
+    private static int naiveIndexOf(int[] prefix, int from, int weight, int sign) {
+        for (int x = from + 1; x < prefix.length; ++x) {
+            if (sign * prefix[x] < sign * weight) return x;
+        }
+        return -1;
+    }
+
+    private static int naiveLastIndexOf(int[] prefix, int to, int weight, int sign) {
+        for (int x = to - 1; x >= 0; --x) {
+            if (sign * prefix[x] < sign * weight) return x;
+        }
+        return -1;
+    }
+
+    @Test
+    public void runsAreCompressed() {
+        ShortRunVector v = ShortRunVector.EMPTY.asTransient()
+                .pushRun((short) 1, 1_000_000)
+                .push((short) 2)
+                .pushRun((short) 1, 1_000_000)
+                .persistent();
+        assertEquals(2_000_001, v.size());
+        // runs longer than 256 are split
+        assertEquals(3907 + 1 + 3907, v.runs());
+        assertEquals(2, v.get(1_000_000));
+        ShortRunVector w = v.take(1_000_000).concat(v.drop(1_000_001));
+        assertEquals(2_000_000, w.size());
+        assertTrue(w.runs() <= 3907 + 3907);
+    }
+
+    @Test
+    public void transientAfterPersistent() {
+        ShortRunVector.Transient t = ShortRunVector.EMPTY.asTransient().push((short) 1);
+        assertEquals("[1]", t.persistent().toString());
+        assertThrows(IllegalStateException.class, () -> t.push((short) 2));
+    }
+}